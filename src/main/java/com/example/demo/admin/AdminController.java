@@ -3,6 +3,9 @@ package com.example.demo.admin;
 import com.example.demo.admin.dto.DashboardStatsDTO;
 import com.example.demo.admin.dto.NewsletterRequestDTO;
 import com.example.demo.admin.dto.ShipmentListDTO;
+import com.example.demo.firestore.CursorPaginator;
+import com.example.demo.newsletter.NewsletterJob;
+import com.example.demo.newsletter.NewsletterJobService;
 import com.example.demo.newsletter.NewsletterService;
 import com.example.demo.newsletter.NewsletterSubscriptionDTO;
 import com.example.demo.order.BrevoEmailService;
@@ -21,6 +24,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -39,11 +43,13 @@ public class AdminController {
     private final DashboardService dashboardService;
     private final CloudinaryService cloudinaryService;
     private final NewsletterService newsletterService;
+    private final NewsletterJobService newsletterJobService;
     private final VercelAnalyticsService vercelAnalyticsService;
     private final SettingService settingService;
     private final ObjectMapper objectMapper;
     private final ExcelService excelService;
     private final BrevoEmailService brevoEmailService;
+    private final CursorPaginator cursorPaginator;
 
     @Value("${admin.username}")
     private String adminUsername;
@@ -51,17 +57,22 @@ public class AdminController {
     @Value("${admin.password}")
     private String adminPassword;
 
-    public AdminController(JwtUtil jwtUtil, OrderService orderService, DashboardService dashboardService, CloudinaryService cloudinaryService, NewsletterService newsletterService, VercelAnalyticsService vercelAnalyticsService, SettingService settingService, ObjectMapper objectMapper, ExcelService excelService, BrevoEmailService brevoEmailService) {
+    @Value("${export.excel.streaming:true}")
+    private boolean excelStreamingEnabled;
+
+    public AdminController(JwtUtil jwtUtil, OrderService orderService, DashboardService dashboardService, CloudinaryService cloudinaryService, NewsletterService newsletterService, NewsletterJobService newsletterJobService, VercelAnalyticsService vercelAnalyticsService, SettingService settingService, ObjectMapper objectMapper, ExcelService excelService, BrevoEmailService brevoEmailService, CursorPaginator cursorPaginator) {
         this.jwtUtil = jwtUtil;
         this.orderService = orderService;
         this.dashboardService = dashboardService;
         this.cloudinaryService = cloudinaryService;
         this.newsletterService = newsletterService;
+        this.newsletterJobService = newsletterJobService;
         this.vercelAnalyticsService = vercelAnalyticsService;
         this.settingService = settingService;
         this.objectMapper = objectMapper;
         this.excelService = excelService;
         this.brevoEmailService = brevoEmailService;
+        this.cursorPaginator = cursorPaginator;
     }
 
     @PostMapping("/send-invoice")
@@ -112,11 +123,21 @@ public class AdminController {
                 return ResponseEntity.ok(Map.of("status", "no-orders"));
             }
 
-            ByteArrayInputStream bis = excelService.createExcelReport(orders);
-
             HttpHeaders headers = new HttpHeaders();
             headers.add("Content-Disposition", "attachment; filename=orders.xlsx");
 
+            if (excelStreamingEnabled) {
+                // Il file viene generato direttamente sulla risposta, senza tenerlo tutto in memoria
+                StreamingResponseBody body = out -> excelService.writeExcelReport(orders, out);
+                return ResponseEntity
+                        .ok()
+                        .headers(headers)
+                        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                        .body(body);
+            }
+
+            ByteArrayInputStream bis = excelService.createExcelReport(orders);
+
             return ResponseEntity
                     .ok()
                     .headers(headers)
@@ -296,17 +317,42 @@ public class AdminController {
         }
     }
 
+    @PostMapping("/newsletter/subscribers/migrate-ids")
+    public ResponseEntity<?> migrateSubscriberIds() {
+        try {
+            int migrated = newsletterService.migrateLegacySubscriptions();
+            return ResponseEntity.ok(Map.of("success", true, "migrated", migrated));
+        } catch (ExecutionException | InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("success", false, "message", "Error migrating subscribers: " + e.getMessage()));
+        }
+    }
+
     @PostMapping("/newsletter/send")
     public ResponseEntity<?> sendNewsletter(@RequestBody NewsletterRequestDTO newsletterRequest) {
+        // L'invio avviene in background: restituiamo subito l'ID del job per seguirne l'avanzamento
         try {
-            newsletterService.sendNewsletter(newsletterRequest.getSubject(), newsletterRequest.getMessage());
-            return ResponseEntity.ok(Map.of("success", true, "message", "Newsletter inviata con successo."));
+            String jobId = newsletterJobService.startJob(newsletterRequest.getSubject(), newsletterRequest.getMessage());
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("success", true, "jobId", jobId, "message", "Invio della newsletter avviato."));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
         } catch (Exception e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("success", false, "message", "Errore durante l'invio della newsletter."));
         }
     }
 
+    @GetMapping("/newsletter/jobs/{jobId}")
+    public ResponseEntity<NewsletterJob> getNewsletterJob(@PathVariable String jobId) {
+        try {
+            NewsletterJob job = newsletterJobService.getJob(jobId);
+            return job != null ? ResponseEntity.ok(job) : ResponseEntity.notFound().build();
+        } catch (ExecutionException | InterruptedException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     @PostMapping("/newsletter/send-test")
     public ResponseEntity<?> sendTestNewsletter(@RequestBody NewsletterRequestDTO newsletterRequest) {
         try {
@@ -329,12 +375,30 @@ public class AdminController {
         }
     }
 
+    @PostMapping("/dashboard-stats/rebuild")
+    public ResponseEntity<?> rebuildDashboardStats() {
+        try {
+            int processed = dashboardService.rebuildStats();
+            return ResponseEntity.ok(Map.of("success", true, "ordersProcessed", processed));
+        } catch (ExecutionException | InterruptedException e) {
+            e.printStackTrace();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("success", false, "message", "Errore durante la ricostruzione delle statistiche."));
+        }
+    }
+
 
     @GetMapping("/orders")
-    public ResponseEntity<List<Order>> getAllOrders(@RequestParam(required = false) Integer status) {
+    public ResponseEntity<?> getAllOrders(@RequestParam(required = false) Integer status,
+                                          @RequestParam(required = false) String pageToken,
+                                          @RequestParam(required = false) Integer pageSize) {
         try {
-            List<Order> orders = orderService.getParentOrders(status);
-            return ResponseEntity.ok(orders);
+            if (cursorPaginator.isLegacyRequest(pageToken, pageSize)) {
+                List<Order> orders = orderService.getParentOrders(status);
+                return ResponseEntity.ok(orders);
+            }
+            return ResponseEntity.ok(orderService.getParentOrdersPage(pageToken, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         } catch (ExecutionException | InterruptedException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
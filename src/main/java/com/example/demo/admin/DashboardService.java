@@ -2,130 +2,84 @@ package com.example.demo.admin;
 
 import com.example.demo.admin.dto.DashboardStatsDTO;
 import com.example.demo.admin.dto.TopProductDTO;
-import com.example.demo.order.Order;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
-import com.google.cloud.firestore.Query;
 import org.springframework.stereotype.Service;
 
-import java.io.IOException;
-import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.time.ZoneId;
-import java.time.temporal.TemporalAdjusters;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Service
 public class DashboardService {
 
     private final Firestore firestore;
-    private final ObjectMapper objectMapper;
+    private final DashboardStatsRecorder statsRecorder;
 
-    public DashboardService(Firestore firestore, ObjectMapper objectMapper) {
+    public DashboardService(Firestore firestore, DashboardStatsRecorder statsRecorder) {
         this.firestore = firestore;
-        this.objectMapper = objectMapper;
+        this.statsRecorder = statsRecorder;
     }
 
     public DashboardStatsDTO getDashboardStats() throws ExecutionException, InterruptedException {
-        // 1. Recupera solo gli ordini PADRE per le statistiche finanziarie
-        List<Order> parentOrders = firestore.collection("orders")
-                .whereEqualTo("type", "PARENT")
-                .get().get().toObjects(Order.class);
+        // I contatori sono pre-aggregati da DashboardStatsRecorder: bastano 4 letture (giorno, settimana, mese, totale)
+        List<DocumentReference> refs = statsRecorder.bucketRefs(LocalDate.now());
+        List<DocumentSnapshot> docs = firestore.getAll(refs.toArray(new DocumentReference[0])).get();
 
-        // 2. Recupera solo gli ordini FIGLIO per l'analisi dei prodotti
-        List<Order> childOrders = firestore.collection("orders")
-                .whereEqualTo("type", "CHILD")
-                .get().get().toObjects(Order.class);
-
-        // Calcoli basati sugli ordini PADRE
-        double revenueToday = calculateTotalRevenue(parentOrders, order -> isToday(order.getCreatedAt().toDate()));
-        long ordersToday = countOrders(parentOrders, order -> isToday(order.getCreatedAt().toDate()));
-
-        double revenueThisWeek = calculateTotalRevenue(parentOrders, order -> isThisWeek(order.getCreatedAt().toDate()));
-        long ordersThisWeek = countOrders(parentOrders, order -> isThisWeek(order.getCreatedAt().toDate()));
-
-        double revenueThisMonth = calculateTotalRevenue(parentOrders, order -> isThisMonth(order.getCreatedAt().toDate()));
-        long ordersThisMonth = countOrders(parentOrders, order -> isThisMonth(order.getCreatedAt().toDate()));
-
-        // Calcolo prodotti più venduti basato sugli ordini FIGLIO
-        List<TopProductDTO> topSellingProducts = calculateTopSellingProducts(childOrders);
+        DocumentSnapshot today = docs.get(0);
+        DocumentSnapshot thisWeek = docs.get(1);
+        DocumentSnapshot thisMonth = docs.get(2);
+        DocumentSnapshot allTime = docs.get(3);
 
         // Costruzione del DTO di risposta
         DashboardStatsDTO stats = new DashboardStatsDTO();
-        stats.setRevenueToday(revenueToday);
-        stats.setOrdersToday((int) ordersToday);
-        stats.setRevenueThisWeek(revenueThisWeek);
-        stats.setOrdersThisWeek((int) ordersThisWeek);
-        stats.setRevenueThisMonth(revenueThisMonth);
-        stats.setOrdersThisMonth((int) ordersThisMonth);
-        stats.setTopSellingProducts(topSellingProducts);
+        stats.setRevenueToday(revenue(today));
+        stats.setOrdersToday(orderCount(today));
+        stats.setRevenueThisWeek(revenue(thisWeek));
+        stats.setOrdersThisWeek(orderCount(thisWeek));
+        stats.setRevenueThisMonth(revenue(thisMonth));
+        stats.setOrdersThisMonth(orderCount(thisMonth));
+        stats.setTopSellingProducts(topSellingProducts(allTime));
 
         return stats;
     }
 
-    private double calculateTotalRevenue(List<Order> parentOrders, Predicate<Order> filter) {
-        return parentOrders.stream()
-                .filter(filter)
-                .mapToDouble(Order::getSubtotal) // Ora questo è sicuro perché usiamo solo ordini PADRE
-                .sum();
+    /**
+     * Ricalcola tutti i contatori dallo storico ordini (backfill).
+     * @return il numero di ordini elaborati.
+     */
+    public int rebuildStats() throws ExecutionException, InterruptedException {
+        return statsRecorder.rebuild();
     }
 
-    private long countOrders(List<Order> parentOrders, Predicate<Order> filter) {
-        return parentOrders.stream()
-                .filter(filter)
-                .count(); // Il conteggio ora è corretto
+    private double revenue(DocumentSnapshot doc) {
+        Double revenue = doc.exists() ? doc.getDouble("revenue") : null;
+        return revenue != null ? revenue : 0.0;
     }
 
-    private List<TopProductDTO> calculateTopSellingProducts(List<Order> childOrders) {
-        return childOrders.stream()
-            .filter(order -> order.getItems() != null && !order.getItems().isEmpty())
-            .flatMap(order -> {
-                try {
-                    List<Map<String, Object>> items = objectMapper.readValue(order.getItems(), new TypeReference<List<Map<String, Object>>>() {});
-                    return items.stream();
-                } catch (IOException e) {
-                    return Collections.<Map<String, Object>>emptyList().stream();
-                }
-            })
-            .collect(Collectors.groupingBy(
-                itemMap -> (String) itemMap.get("name"),
-                Collectors.summingInt(itemMap -> ((Number) itemMap.get("quantity")).intValue())
-            ))
-            .entrySet().stream()
-            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-            .limit(5)
-            .map(entry -> new TopProductDTO(entry.getKey(), entry.getValue()))
-            .collect(Collectors.toList());
+    private int orderCount(DocumentSnapshot doc) {
+        Long count = doc.exists() ? doc.getLong("orderCount") : null;
+        return count != null ? count.intValue() : 0;
     }
 
-    // --- Funzioni di utilità per il confronto di date ---
-
-    private boolean isToday(Date date) {
-        if (date == null) return false;
-        LocalDate orderDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-        return orderDate.isEqual(LocalDate.now());
-    }
-
-    private boolean isThisWeek(Date date) {
-        if (date == null) return false;
-        LocalDate orderDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-        LocalDate today = LocalDate.now();
-        LocalDate startOfWeek = today.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
-        LocalDate endOfWeek = today.with(TemporalAdjusters.nextOrSame(DayOfWeek.SUNDAY));
-        return !orderDate.isBefore(startOfWeek) && !orderDate.isAfter(endOfWeek);
-    }
-
-    private boolean isThisMonth(Date date) {
-        if (date == null) return false;
-        LocalDate orderDate = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
-        LocalDate today = LocalDate.now();
-        return orderDate.getMonth() == today.getMonth() && orderDate.getYear() == today.getYear();
+    @SuppressWarnings("unchecked")
+    private List<TopProductDTO> topSellingProducts(DocumentSnapshot allTime) {
+        Object raw = allTime.exists() ? allTime.get("products") : null;
+        if (!(raw instanceof Map)) {
+            return Collections.emptyList();
+        }
+        return ((Map<String, Object>) raw).values().stream()
+            .filter(value -> value instanceof Map)
+            .map(value -> (Map<String, Object>) value)
+            .filter(product -> product.get("quantity") instanceof Number)
+            .map(product -> new TopProductDTO((String) product.get("name"), ((Number) product.get("quantity")).intValue()))
+            .filter(product -> product.getQuantitySold() > 0)
+            .sorted((a, b) -> Integer.compare(b.getQuantitySold(), a.getQuantitySold()))
+            .limit(5)
+            .collect(Collectors.toList());
     }
 }
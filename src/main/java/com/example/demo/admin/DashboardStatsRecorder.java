@@ -0,0 +1,223 @@
+package com.example.demo.admin;
+
+import com.example.demo.firestore.FirestoreBulkLoader;
+import com.example.demo.order.Order;
+import com.example.demo.order.OrderLine;
+import com.example.demo.order.OrderLines;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Mantiene i contatori aggregati della dashboard nella collezione "dashboard_stats".
+ * Ogni ordine incrementa quattro documenti: giorno, settimana (dal lunedì), mese e totale storico.
+ * Ogni documento contiene ricavo, numero di ordini e quantità vendute per prodotto.
+ * Gli incrementi vengono aggiunti alla stessa transazione/batch che scrive (o elimina) l'ordine.
+ */
+@Component
+public class DashboardStatsRecorder {
+
+    private static final Logger logger = LoggerFactory.getLogger(DashboardStatsRecorder.class);
+
+    public static final String ALL_TIME_ID = "all_time";
+
+
+    private final Firestore firestore;
+    private final CollectionReference statsCollection;
+    private final OrderLines orderLines;
+
+    public DashboardStatsRecorder(Firestore firestore, OrderLines orderLines) {
+        this.firestore = firestore;
+        this.statsCollection = firestore.collection("dashboard_stats");
+        this.orderLines = orderLines;
+    }
+
+    public static String dayId(LocalDate date) {
+        return "day_" + date;
+    }
+
+    public static String weekId(LocalDate date) {
+        return "week_" + date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    public static String monthId(LocalDate date) {
+        return "month_" + date.getYear() + "-" + String.format("%02d", date.getMonthValue());
+    }
+
+    public List<DocumentReference> bucketRefs(LocalDate date) {
+        return List.of(
+                statsCollection.document(dayId(date)),
+                statsCollection.document(weekId(date)),
+                statsCollection.document(monthId(date)),
+                statsCollection.document(ALL_TIME_ID)
+        );
+    }
+
+    /**
+     * Aggiunge a {@code writer} gli incrementi per un ordine appena creato.
+     */
+    public void recordOrder(UpdateBuilder<?> writer, Order parent, List<Order> children) {
+        apply(writer, parent, children, 1);
+    }
+
+    /**
+     * Aggiunge a {@code writer} i decrementi per un ordine che sta per essere eliminato.
+     */
+    public void removeOrder(UpdateBuilder<?> writer, Order parent, List<Order> children) {
+        apply(writer, parent, children, -1);
+    }
+
+    private void apply(UpdateBuilder<?> writer, Order parent, List<Order> children, int sign) {
+        LocalDate date = toLocalDate(parent.getCreatedAt());
+        double revenue = parent.getSubtotal() != null ? parent.getSubtotal() : 0.0;
+
+        Map<String, Object> productIncrements = new HashMap<>();
+        for (Map.Entry<String, ProductTotal> entry : sumProducts(children).entrySet()) {
+            productIncrements.put(entry.getKey(), Map.of(
+                    "name", entry.getValue().name,
+                    "quantity", FieldValue.increment(sign * entry.getValue().quantity)
+            ));
+        }
+
+        Map<String, Object> update = new HashMap<>();
+        update.put("revenue", FieldValue.increment(sign * revenue));
+        update.put("orderCount", FieldValue.increment(sign));
+        // Una mappa vuota in merge sovrascriverebbe l'intero campo: la aggiungiamo solo se ci sono articoli
+        if (!productIncrements.isEmpty()) {
+            update.put("products", productIncrements);
+        }
+
+        for (DocumentReference ref : bucketRefs(date)) {
+            writer.set(ref, update, SetOptions.merge());
+        }
+    }
+
+    /**
+     * Ricostruisce da zero tutti i contatori a partire dallo storico ordini.
+     * Da usare una tantum (backfill) o per riallineare i contatori: ordini creati durante la ricostruzione
+     * possono andare persi, quindi va lanciata in un momento di traffico basso.
+     * @return il numero di ordini PADRE elaborati.
+     */
+    public int rebuild() throws ExecutionException, InterruptedException {
+        List<Order> parents = firestore.collection("orders").whereEqualTo("type", "PARENT").get().get().toObjects(Order.class);
+        List<Order> allChildren = firestore.collection("orders").whereEqualTo("type", "CHILD").get().get().toObjects(Order.class);
+
+        Map<String, List<Order>> childrenByParent = new HashMap<>();
+        for (Order child : allChildren) {
+            if (child.getParentOrderId() != null) {
+                childrenByParent.computeIfAbsent(child.getParentOrderId(), k -> new ArrayList<>()).add(child);
+            }
+        }
+
+        // Aggregazione in memoria, un documento per bucket
+        Map<String, Map<String, Object>> buckets = new LinkedHashMap<>();
+        for (Order parent : parents) {
+            LocalDate date = toLocalDate(parent.getCreatedAt());
+            double revenue = parent.getSubtotal() != null ? parent.getSubtotal() : 0.0;
+            Map<String, ProductTotal> products = sumProducts(childrenByParent.getOrDefault(parent.getId(), Collections.emptyList()));
+
+            for (String bucketId : List.of(dayId(date), weekId(date), monthId(date), ALL_TIME_ID)) {
+                Map<String, Object> bucket = buckets.computeIfAbsent(bucketId, k -> newBucket());
+                bucket.put("revenue", (Double) bucket.get("revenue") + revenue);
+                bucket.put("orderCount", (Long) bucket.get("orderCount") + 1);
+
+                @SuppressWarnings("unchecked")
+                Map<String, Map<String, Object>> bucketProducts = (Map<String, Map<String, Object>>) bucket.get("products");
+                for (Map.Entry<String, ProductTotal> entry : products.entrySet()) {
+                    Map<String, Object> product = bucketProducts.computeIfAbsent(entry.getKey(), k -> new HashMap<>(Map.of("name", entry.getValue().name, "quantity", 0L)));
+                    product.put("quantity", (Long) product.get("quantity") + entry.getValue().quantity);
+                }
+            }
+        }
+
+        // Sostituisce i documenti esistenti: i bucket senza più ordini vengono eliminati
+        List<QueryDocumentSnapshot> existing = statsCollection.get().get().getDocuments();
+        WriteBatch batch = firestore.batch();
+        int writes = 0;
+        for (QueryDocumentSnapshot doc : existing) {
+            if (!buckets.containsKey(doc.getId())) {
+                batch.delete(doc.getReference());
+                if (++writes == FirestoreBulkLoader.MAX_BATCH_WRITES) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                    writes = 0;
+                }
+            }
+        }
+        for (Map.Entry<String, Map<String, Object>> entry : buckets.entrySet()) {
+            batch.set(statsCollection.document(entry.getKey()), entry.getValue());
+            if (++writes == FirestoreBulkLoader.MAX_BATCH_WRITES) {
+                batch.commit().get();
+                batch = firestore.batch();
+                writes = 0;
+            }
+        }
+        if (writes > 0) {
+            batch.commit().get();
+        }
+
+        logger.info("Dashboard stats rebuilt from {} orders into {} documents.", parents.size(), buckets.size());
+        return parents.size();
+    }
+
+    private Map<String, Object> newBucket() {
+        Map<String, Object> bucket = new HashMap<>();
+        bucket.put("revenue", 0.0);
+        bucket.put("orderCount", 0L);
+        bucket.put("products", new HashMap<String, Map<String, Object>>());
+        return bucket;
+    }
+
+    private Map<String, ProductTotal> sumProducts(List<Order> children) {
+        Map<String, ProductTotal> totals = new HashMap<>();
+        if (children == null) {
+            return totals;
+        }
+        for (Order child : children) {
+            for (OrderLine line : orderLines.linesOf(child)) {
+                String productId = line.getId() != null ? line.getId() : line.getName();
+                if (productId == null) {
+                    continue;
+                }
+                ProductTotal total = totals.computeIfAbsent(productId, k -> new ProductTotal(line.getName() != null ? line.getName() : k));
+                total.quantity += line.getQuantity();
+            }
+        }
+        return totals;
+    }
+
+    private LocalDate toLocalDate(Timestamp timestamp) {
+        Timestamp value = timestamp != null ? timestamp : Timestamp.now();
+        return value.toDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private static class ProductTotal {
+        private final String name;
+        private long quantity;
+
+        ProductTotal(String name) {
+            this.name = name;
+        }
+    }
+}
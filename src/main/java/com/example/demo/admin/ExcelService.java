@@ -1,16 +1,19 @@
 package com.example.demo.admin;
 
 import com.example.demo.order.Order;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.demo.order.OrderLine;
+import com.example.demo.order.OrderLines;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.text.SimpleDateFormat;
@@ -20,30 +23,73 @@ import java.util.stream.Collectors;
 @Service
 public class ExcelService {
 
-    private final ObjectMapper objectMapper;
+    // Larghezze fisse (in caratteri) usate in modalità streaming al posto di autoSizeColumn
+    private static final int[] SUMMARY_COLUMN_WIDTHS = {45, 14, 16, 16, 16};
+    private static final int[] PRODUCT_SALES_COLUMN_WIDTHS = {40, 24, 18};
+    private static final int[] ORDERS_LIST_COLUMN_WIDTHS = {28, 18, 28, 32, 18, 20, 18, 14, 28, 24, 40, 10, 16, 14, 12, 12, 12};
 
-    public ExcelService(ObjectMapper objectMapper) {
-        this.objectMapper = objectMapper;
+    private final OrderLines orderLines;
+
+    // Numero di righe tenute in memoria per foglio: le precedenti vengono scaricate su file temporaneo
+    @Value("${export.excel.row-window:200}")
+    private int rowWindow;
+
+    public ExcelService(OrderLines orderLines) {
+        this.orderLines = orderLines;
     }
 
     public ByteArrayInputStream createExcelReport(List<Order> orders) throws IOException {
         try (Workbook workbook = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            populateWorkbook(workbook, orders, true);
+            workbook.write(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+    }
 
-            CellStyle headerCellStyle = createHeaderStyle(workbook);
-            CellStyle boldStyle = createBoldStyle(workbook);
-            CellStyle sectionHeaderStyle = createSectionHeaderStyle(workbook);
-            CellStyle centeredStyle = createCenteredStyle(workbook);
+    /**
+     * Variante in streaming: usa SXSSFWorkbook con una finestra limitata di righe in memoria
+     * e scrive direttamente su {@code out}, senza costruire l'intero file in un array di byte.
+     * Le colonne hanno larghezze fisse perché autoSizeColumn richiederebbe di tenere traccia di tutte le righe.
+     */
+    public void writeExcelReport(List<Order> orders, OutputStream out) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(rowWindow);
+        workbook.setCompressTempFiles(true);
+        try {
+            populateWorkbook(workbook, orders, false);
+            workbook.write(out);
+        } finally {
+            // Elimina i file temporanei su disco creati da SXSSF
+            workbook.dispose();
+            workbook.close();
+        }
+    }
 
-            createSummarySheet(workbook, orders, headerCellStyle, boldStyle, sectionHeaderStyle);
-            createProductSalesSheet(workbook, orders, headerCellStyle);
-            createOrdersListSheet(workbook, orders, headerCellStyle, centeredStyle);
+    private void populateWorkbook(Workbook workbook, List<Order> orders, boolean autoSizeColumns) {
+        CellStyle headerCellStyle = createHeaderStyle(workbook);
+        CellStyle boldStyle = createBoldStyle(workbook);
+        CellStyle sectionHeaderStyle = createSectionHeaderStyle(workbook);
+        CellStyle centeredStyle = createCenteredStyle(workbook);
 
-            workbook.write(out);
-            return new ByteArrayInputStream(out.toByteArray());
+        Sheet summarySheet = createSummarySheet(workbook, orders, headerCellStyle, boldStyle, sectionHeaderStyle);
+        Sheet productSalesSheet = createProductSalesSheet(workbook, orders, headerCellStyle);
+        Sheet ordersListSheet = createOrdersListSheet(workbook, orders, headerCellStyle, centeredStyle);
+
+        sizeColumns(summarySheet, SUMMARY_COLUMN_WIDTHS, autoSizeColumns);
+        sizeColumns(productSalesSheet, PRODUCT_SALES_COLUMN_WIDTHS, autoSizeColumns);
+        sizeColumns(ordersListSheet, ORDERS_LIST_COLUMN_WIDTHS, autoSizeColumns);
+    }
+
+    private void sizeColumns(Sheet sheet, int[] fixedWidths, boolean autoSize) {
+        for (int i = 0; i < fixedWidths.length; i++) {
+            if (autoSize) {
+                sheet.autoSizeColumn(i);
+            } else {
+                sheet.setColumnWidth(i, fixedWidths[i] * 256);
+            }
         }
     }
 
-    private void createSummarySheet(Workbook workbook, List<Order> orders, CellStyle headerStyle, CellStyle boldStyle, CellStyle sectionHeaderStyle) {
+    private Sheet createSummarySheet(Workbook workbook, List<Order> orders, CellStyle headerStyle, CellStyle boldStyle, CellStyle sectionHeaderStyle) {
         Sheet sheet = workbook.createSheet("Riepilogo Mensile");
         sheet.setDefaultColumnWidth(35);
 
@@ -75,26 +121,10 @@ public class ExcelService {
             // Calcolo IVA Prodotti
             if (order.getChildOrders() != null) {
                 for (Order child : order.getChildOrders()) {
-                    try {
-                        List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-                        for (Map<String, Object> item : items) {
-                            int quantity = ((Number) item.get("quantity")).intValue();
-                            double price = ((Number) item.get("price")).doubleValue();
-                            if (item.containsKey("discountPrice") && item.get("discountPrice") != null) {
-                                price = ((Number) item.get("discountPrice")).doubleValue();
-                            }
-                            
-                            int vatRate = 22;
-                            if (item.containsKey("vatRate") && item.get("vatRate") != null) {
-                                vatRate = ((Number) item.get("vatRate")).intValue();
-                            }
-
-                            double itemTotal = price * quantity;
-                            double itemVAT = itemTotal - (itemTotal / (1 + (double)vatRate / 100));
-                            totalVAT += itemVAT;
-                        }
-                    } catch (IOException e) {
-                        System.err.println("Error calculating VAT for order " + order.getId());
+                    for (OrderLine line : linesOf(child)) {
+                        double itemTotal = line.getFinalPrice() * line.getQuantity();
+                        double itemVAT = itemTotal - (itemTotal / (1 + (double) line.getVatRateOrDefault() / 100));
+                        totalVAT += itemVAT;
                     }
                 }
             }
@@ -183,13 +213,10 @@ public class ExcelService {
             row.createCell(3).setCellValue(stat.getTotalFee());
             row.createCell(4).setCellValue(stat.getTotalNet());
         }
-
-        for (int i = 0; i < 5; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        return sheet;
     }
 
-    private void createProductSalesSheet(Workbook workbook, List<Order> orders, CellStyle headerStyle) {
+    private Sheet createProductSalesSheet(Workbook workbook, List<Order> orders, CellStyle headerStyle) {
         Sheet sheet = workbook.createSheet("Vendite per Prodotto");
 
         String[] headers = {"Nome Prodotto", "Quantità Totale Venduta", "Ricavo Generato"};
@@ -204,25 +231,9 @@ public class ExcelService {
         for (Order order : orders) {
             if (order.getChildOrders() == null) continue;
             for (Order child : order.getChildOrders()) {
-                try {
-                    List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-                    for (Map<String, Object> item : items) {
-                        String name = (String) item.get("name");
-                        int quantity = ((Number) item.get("quantity")).intValue();
-                        
-                        Object discountPriceObj = item.get("discountPrice");
-                        double finalPrice;
-                        if (discountPriceObj instanceof Number) {
-                            finalPrice = ((Number) discountPriceObj).doubleValue();
-                        } else {
-                            finalPrice = ((Number) item.get("price")).doubleValue();
-                        }
-
-                        ProductSaleStat stat = productStats.computeIfAbsent(name, ProductSaleStat::new);
-                        stat.addSale(quantity, finalPrice * quantity);
-                    }
-                } catch (IOException e) {
-                    System.err.println("Error processing items for product sales sheet: " + e.getMessage());
+                for (OrderLine line : linesOf(child)) {
+                    ProductSaleStat stat = productStats.computeIfAbsent(line.getName(), ProductSaleStat::new);
+                    stat.addSale(line.getQuantity(), line.getFinalPrice() * line.getQuantity());
                 }
             }
         }
@@ -234,13 +245,10 @@ public class ExcelService {
             row.createCell(1).setCellValue(entry.getValue().getTotalQuantity());
             row.createCell(2).setCellValue(entry.getValue().getTotalRevenue());
         }
-
-        for (int i = 0; i < headers.length; i++) {
-            sheet.autoSizeColumn(i);
-        }
+        return sheet;
     }
 
-    private void createOrdersListSheet(Workbook workbook, List<Order> orders, CellStyle headerStyle, CellStyle centeredStyle) {
+    private Sheet createOrdersListSheet(Workbook workbook, List<Order> orders, CellStyle headerStyle, CellStyle centeredStyle) {
         Sheet sheet = workbook.createSheet("Elenco Ordini");
 
         String[] headers = {
@@ -309,101 +317,86 @@ public class ExcelService {
 
             } else {
                 for (Order child : children) {
-                    try {
-                        List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-                        if (items.isEmpty()) items = Collections.singletonList(Collections.emptyMap());
+                    List<OrderLine> items = linesOf(child);
+                    if (items.isEmpty()) items = Collections.singletonList(null);
 
-                        int startChildRow = rowNum;
+                    int startChildRow = rowNum;
 
-                        for (Map<String, Object> item : items) {
-                            Row row = sheet.createRow(rowNum++);
-                            int col = 0;
-                            
-                            // Dati Ordine Padre - Applica SEMPRE centeredStyle
-                            Cell cellId = row.createCell(col++);
-                            cellId.setCellValue(order.getId());
-                            cellId.setCellStyle(centeredStyle);
-
-                            Cell cellDate = row.createCell(col++);
-                            cellDate.setCellValue(sdf.format(order.getCreatedAt().toDate()));
-                            cellDate.setCellStyle(centeredStyle);
-
-                            Cell cellName = row.createCell(col++);
-                            cellName.setCellValue(order.getFullName());
-                            cellName.setCellStyle(centeredStyle);
-
-                            Cell cellEmail = row.createCell(col++);
-                            cellEmail.setCellValue(order.getEmail());
-                            cellEmail.setCellStyle(centeredStyle);
-                            
-                            Cell cellMethod = row.createCell(col++);
-                            cellMethod.setCellValue(paymentMethod);
-                            cellMethod.setCellStyle(centeredStyle);
-
-                            Cell cellTotal = row.createCell(col++);
-                            cellTotal.setCellValue(orderTotal);
-                            cellTotal.setCellStyle(centeredStyle);
-
-                            Cell cellFee = row.createCell(col++);
-                            cellFee.setCellValue(paymentFee);
-                            cellFee.setCellStyle(centeredStyle);
-
-                            Cell cellNet = row.createCell(col++);
-                            cellNet.setCellValue(netRevenue);
-                            cellNet.setCellStyle(centeredStyle);
-
-                            // Dati Spedizione - Applica SEMPRE centeredStyle
-                            Cell cellShipId = row.createCell(col++);
-                            cellShipId.setCellValue(child.getId());
-                            cellShipId.setCellStyle(centeredStyle);
-
-                            Cell cellShipStatus = row.createCell(col++);
-                            cellShipStatus.setCellValue(convertStatus(child.getStatus()));
-                            cellShipStatus.setCellStyle(centeredStyle);
-                            
-                            // Dati Articolo
-                            if (!item.isEmpty()) {
-                                double originalPrice = ((Number) item.get("price")).doubleValue();
-                                int quantity = ((Number) item.get("quantity")).intValue();
-                                
-                                Object discountPriceObj = item.get("discountPrice");
-                                double finalItemPrice;
-                                if (discountPriceObj instanceof Number) {
-                                    finalItemPrice = ((Number) discountPriceObj).doubleValue();
-                                } else {
-                                    finalItemPrice = originalPrice;
-                                }
-
-                                int vatRate = 22;
-                                if (item.containsKey("vatRate") && item.get("vatRate") != null) {
-                                    vatRate = ((Number) item.get("vatRate")).intValue();
-                                }
-
-                                double itemTotal = finalItemPrice * quantity;
-                                double itemVAT = itemTotal - (itemTotal / (1 + (double)vatRate / 100));
-                                double itemTaxable = itemTotal - itemVAT;
-
-                                row.createCell(col++).setCellValue((String) item.get("name"));
-                                row.createCell(col++).setCellValue(quantity);
-                                row.createCell(col++).setCellValue(originalPrice);
-                                row.createCell(col++).setCellValue(finalItemPrice);
-                                
-                                row.createCell(col++).setCellValue(vatRate + "%");
-                                row.createCell(col++).setCellValue(itemVAT);
-                                row.createCell(col++).setCellValue(itemTaxable);
-                            }
-                        }
+                    for (OrderLine item : items) {
+                        Row row = sheet.createRow(rowNum++);
+                        int col = 0;
+                        
+                        // Dati Ordine Padre - Applica SEMPRE centeredStyle
+                        Cell cellId = row.createCell(col++);
+                        cellId.setCellValue(order.getId());
+                        cellId.setCellStyle(centeredStyle);
+
+                        Cell cellDate = row.createCell(col++);
+                        cellDate.setCellValue(sdf.format(order.getCreatedAt().toDate()));
+                        cellDate.setCellStyle(centeredStyle);
+
+                        Cell cellName = row.createCell(col++);
+                        cellName.setCellValue(order.getFullName());
+                        cellName.setCellStyle(centeredStyle);
+
+                        Cell cellEmail = row.createCell(col++);
+                        cellEmail.setCellValue(order.getEmail());
+                        cellEmail.setCellStyle(centeredStyle);
+                        
+                        Cell cellMethod = row.createCell(col++);
+                        cellMethod.setCellValue(paymentMethod);
+                        cellMethod.setCellStyle(centeredStyle);
+
+                        Cell cellTotal = row.createCell(col++);
+                        cellTotal.setCellValue(orderTotal);
+                        cellTotal.setCellStyle(centeredStyle);
+
+                        Cell cellFee = row.createCell(col++);
+                        cellFee.setCellValue(paymentFee);
+                        cellFee.setCellStyle(centeredStyle);
+
+                        Cell cellNet = row.createCell(col++);
+                        cellNet.setCellValue(netRevenue);
+                        cellNet.setCellStyle(centeredStyle);
+
+                        // Dati Spedizione - Applica SEMPRE centeredStyle
+                        Cell cellShipId = row.createCell(col++);
+                        cellShipId.setCellValue(child.getId());
+                        cellShipId.setCellStyle(centeredStyle);
+
+                        Cell cellShipStatus = row.createCell(col++);
+                        cellShipStatus.setCellValue(convertStatus(child.getStatus()));
+                        cellShipStatus.setCellStyle(centeredStyle);
+                        
+                        // Dati Articolo
+                        if (item != null) {
+                            double originalPrice = item.getPrice() != null ? item.getPrice() : 0.0;
+                            int quantity = item.getQuantity();
+                            double finalItemPrice = item.getFinalPrice();
+                            int vatRate = item.getVatRateOrDefault();
+
+                            double itemTotal = finalItemPrice * quantity;
+                            double itemVAT = itemTotal - (itemTotal / (1 + (double)vatRate / 100));
+                            double itemTaxable = itemTotal - itemVAT;
 
-                        // Unione celle Spedizione
-                        int endChildRow = rowNum - 1;
-                        if (endChildRow > startChildRow) {
-                            sheet.addMergedRegion(new CellRangeAddress(startChildRow, endChildRow, 8, 8));
-                            sheet.addMergedRegion(new CellRangeAddress(startChildRow, endChildRow, 9, 9));
-                            // Lo stile è già settato sopra
+                            row.createCell(col++).setCellValue(item.getName());
+                            row.createCell(col++).setCellValue(quantity);
+                            row.createCell(col++).setCellValue(originalPrice);
+                            row.createCell(col++).setCellValue(finalItemPrice);
+                            
+                            row.createCell(col++).setCellValue(vatRate + "%");
+                            row.createCell(col++).setCellValue(itemVAT);
+                            row.createCell(col++).setCellValue(itemTaxable);
                         }
+                    }
 
-                    } catch (IOException e) {
-                        System.err.println("Errore durante la lettura degli articoli per l'ordine figlio: " + child.getId());
+                    // Unione celle Spedizione. Le regioni non si sovrappongono mai (colonne 8-9 per spedizione, 0-7 per ordine,
+                    // righe sempre nuove), quindi la variante "unsafe" evita il controllo di intersezione, quadratico sul numero di regioni
+                    int endChildRow = rowNum - 1;
+                    if (endChildRow > startChildRow) {
+                        sheet.addMergedRegionUnsafe(new CellRangeAddress(startChildRow, endChildRow, 8, 8));
+                        sheet.addMergedRegionUnsafe(new CellRangeAddress(startChildRow, endChildRow, 9, 9));
+                        // Lo stile è già settato sopra
                     }
                 }
             }
@@ -412,15 +405,16 @@ public class ExcelService {
             int endOrderRow = rowNum - 1;
             if (endOrderRow > startOrderRow) {
                 for (int i = 0; i <= 7; i++) {
-                    sheet.addMergedRegion(new CellRangeAddress(startOrderRow, endOrderRow, i, i));
+                    sheet.addMergedRegionUnsafe(new CellRangeAddress(startOrderRow, endOrderRow, i, i));
                     // Lo stile è già settato sopra
                 }
             }
         }
+        return sheet;
+    }
 
-        for (int i = 0; i < headers.length; i++) {
-            sheet.autoSizeColumn(i);
-        }
+    private List<OrderLine> linesOf(Order child) {
+        return orderLines.linesOf(child);
     }
 
     private CellStyle createHeaderStyle(Workbook workbook) {
@@ -2,6 +2,7 @@ package com.example.demo.admin;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -20,7 +21,7 @@ public class VercelAnalyticsService {
 
     private static final Logger logger = LoggerFactory.getLogger(VercelAnalyticsService.class);
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RestTemplate restTemplate;
 
     // MODIFICA: Aggiunto valore di default vuoto (:) per rendere la proprietà opzionale all'avvio
     @Value("${vercel.api.token:}")
@@ -33,6 +34,10 @@ public class VercelAnalyticsService {
     @Value("${feature.vercel.analytics.enabled:false}")
     private boolean analyticsEnabled;
 
+    public VercelAnalyticsService(@Qualifier("vercelRestTemplate") RestTemplate restTemplate) {
+        this.restTemplate = restTemplate;
+    }
+
     public String getAnalyticsData(String fromParam, String typeParam) {
         if (!analyticsEnabled) {
             return "{\"status\": \"disabled\", \"message\": \"Vercel Analytics feature is not enabled.\"}";
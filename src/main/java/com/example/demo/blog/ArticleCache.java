@@ -0,0 +1,175 @@
+package com.example.demo.blog;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache in memoria degli articoli del blog, allineata tramite uno snapshot listener sulla collezione "articles".
+ * Ad ogni modifica vengono ricostruiti l'indice per slug, la lista dei pubblicati già ordinata per data di
+ * pubblicazione (con i relativi riepiloghi senza corpo) e la lista admin ordinata per data di creazione.
+ */
+@Component
+public class ArticleCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ArticleCache.class);
+
+    static final Comparator<Article> BY_PUBLISHED_DESC =
+            Comparator.comparing(Article::getPublishedAt, Comparator.nullsLast(Comparator.reverseOrder()));
+    static final Comparator<Article> BY_CREATED_DESC =
+            Comparator.comparing(Article::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder()));
+
+    private final CollectionReference articlesCollection;
+    private final AtomicReference<ArticleSnapshot> snapshot = new AtomicReference<>();
+
+    @Value("${blog.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${blog.cache.startup-timeout-ms:5000}")
+    private long startupTimeoutMs;
+
+    private volatile ListenerRegistration registration;
+
+    public ArticleCache(Firestore firestore) {
+        this.articlesCollection = firestore.collection("articles");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!cacheEnabled) {
+            logger.info("Article cache disabled. Reads will go straight to Firestore.");
+            return;
+        }
+        CountDownLatch firstSnapshot = new CountDownLatch(1);
+        subscribe(firstSnapshot);
+        try {
+            if (!firstSnapshot.await(startupTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Articles not loaded within {} ms. Falling back to Firestore until the listener catches up.", startupTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+            registration = null;
+        }
+    }
+
+    /**
+     * @return i riassunti degli articoli pubblicati, oppure empty se la cache non è disponibile e bisogna leggere da Firestore.
+     */
+    public Optional<List<ArticleSummary>> getPublishedSummaries() {
+        return currentSnapshot().map(ArticleSnapshot::publishedSummaries);
+    }
+
+    public Optional<List<Article>> getPublishedArticles() {
+        return currentSnapshot().map(ArticleSnapshot::published);
+    }
+
+    public Optional<List<Article>> getAllArticles() {
+        return currentSnapshot().map(ArticleSnapshot::all);
+    }
+
+    /**
+     * @return gli articoli per slug, oppure empty se la cache non è disponibile.
+     */
+    public Optional<Map<String, Article>> getArticlesBySlug() {
+        return currentSnapshot().map(ArticleSnapshot::bySlug);
+    }
+
+    /**
+     * Lo snapshot viene letto una sola volta: il listener può azzerarlo in qualsiasi momento,
+     * quindi chi chiama lavora sempre su una vista coerente oppure ripiega su Firestore.
+     */
+    private Optional<ArticleSnapshot> currentSnapshot() {
+        if (!cacheEnabled) {
+            return Optional.empty();
+        }
+        if (registration == null) {
+            // Il listener è caduto: proviamo a ri-sottoscriverci alla prima lettura utile.
+            subscribe(null);
+        }
+        return Optional.ofNullable(snapshot.get());
+    }
+
+    private synchronized void subscribe(CountDownLatch firstSnapshot) {
+        if (registration != null) {
+            return;
+        }
+        registration = articlesCollection.addSnapshotListener((querySnapshot, error) -> {
+            if (error != null) {
+                logger.error("Article cache listener failed: {}", error.getMessage());
+                snapshot.set(null);
+                registration = null;
+            } else if (querySnapshot != null) {
+                snapshot.set(ArticleSnapshot.of(querySnapshot));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
+    }
+
+    /**
+     * Vista immutabile degli articoli in un dato istante.
+     */
+    private record ArticleSnapshot(List<Article> all, List<Article> published, List<ArticleSummary> publishedSummaries,
+                                   Map<String, Article> bySlug) {
+
+        static ArticleSnapshot of(QuerySnapshot querySnapshot) {
+            List<Article> all = new ArrayList<>(querySnapshot.toObjects(Article.class));
+            List<Article> published = new ArrayList<>();
+            for (Article article : all) {
+                if ("PUBLISHED".equals(article.getStatus())) {
+                    published.add(article);
+                }
+            }
+            published.sort(BY_PUBLISHED_DESC);
+            all.sort(BY_CREATED_DESC);
+
+            List<ArticleSummary> summaries = new ArrayList<>(published.size());
+            for (Article article : published) {
+                summaries.add(ArticleSummary.of(article));
+            }
+
+            // A parità di slug vince l'articolo pubblicato
+            Map<String, Article> bySlug = new HashMap<>();
+            for (Article article : published) {
+                if (article.getSlug() != null) bySlug.putIfAbsent(article.getSlug(), article);
+            }
+            for (Article article : all) {
+                if (article.getSlug() != null) bySlug.putIfAbsent(article.getSlug(), article);
+            }
+
+            return new ArticleSnapshot(
+                    Collections.unmodifiableList(all),
+                    Collections.unmodifiableList(published),
+                    Collections.unmodifiableList(summaries),
+                    Collections.unmodifiableMap(bySlug)
+            );
+        }
+    }
+}
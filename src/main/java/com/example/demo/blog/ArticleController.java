@@ -1,5 +1,6 @@
 package com.example.demo.blog;
 
+import com.example.demo.firestore.CursorPaginator;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -13,17 +14,20 @@ import java.util.concurrent.ExecutionException;
 public class ArticleController {
 
     private final ArticleService articleService;
+    private final CursorPaginator cursorPaginator;
 
-    public ArticleController(ArticleService articleService) {
+    public ArticleController(ArticleService articleService, CursorPaginator cursorPaginator) {
         this.articleService = articleService;
+        this.cursorPaginator = cursorPaginator;
     }
 
     // --- ENDPOINT PUBBLICI ---
 
     @GetMapping("/blog")
-    public ResponseEntity<List<Article>> getPublishedArticles() {
+    public ResponseEntity<List<ArticleSummary>> getPublishedArticles() {
         try {
-            List<Article> articles = articleService.getPublishedArticles();
+            // Solo i riepiloghi: il contenuto completo si legge dal dettaglio per slug
+            List<ArticleSummary> articles = articleService.getPublishedArticleSummaries();
             return ResponseEntity.ok(articles);
         } catch (ExecutionException | InterruptedException e) {
             e.printStackTrace(); // Stampa l'errore in console per debug
@@ -49,10 +53,16 @@ public class ArticleController {
     // --- ENDPOINT ADMIN ---
 
     @GetMapping("/admin/blog")
-    public ResponseEntity<List<Article>> getAllArticlesForAdmin() {
+    public ResponseEntity<?> getAllArticlesForAdmin(@RequestParam(required = false) String pageToken,
+                                                    @RequestParam(required = false) Integer pageSize) {
         try {
-            List<Article> articles = articleService.getAllArticlesForAdmin();
-            return ResponseEntity.ok(articles);
+            if (cursorPaginator.isLegacyRequest(pageToken, pageSize)) {
+                List<Article> articles = articleService.getAllArticlesForAdmin();
+                return ResponseEntity.ok(articles);
+            }
+            return ResponseEntity.ok(articleService.getArticlesPageForAdmin(pageToken, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         } catch (ExecutionException | InterruptedException e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
@@ -3,6 +3,8 @@ package com.example.demo.blog;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
+import com.example.demo.firestore.CursorPaginator;
+import com.example.demo.firestore.Page;
 import org.springframework.stereotype.Service;
 
 import java.text.Normalizer;
@@ -16,14 +18,22 @@ public class ArticleService {
 
     private final Firestore firestore;
     private final CollectionReference articlesCollection;
+    private final ArticleCache articleCache;
+    private final CursorPaginator cursorPaginator;
 
-    public ArticleService(Firestore firestore) {
+    public ArticleService(Firestore firestore, ArticleCache articleCache, CursorPaginator cursorPaginator) {
         this.firestore = firestore;
         this.articlesCollection = firestore.collection("articles");
+        this.articleCache = articleCache;
+        this.cursorPaginator = cursorPaginator;
     }
 
     // Pubblico: Solo articoli pubblicati, ordinati per data di pubblicazione decrescente (ordinamento in memoria)
     public List<Article> getPublishedArticles() throws ExecutionException, InterruptedException {
+        Optional<List<Article>> cached = articleCache.getPublishedArticles();
+        if (cached.isPresent()) {
+            return cached.get();
+        }
         // Query semplice senza ordinamento per evitare la necessità di un indice composito
         Query query = articlesCollection.whereEqualTo("status", "PUBLISHED");
 
@@ -31,7 +41,18 @@ public class ArticleService {
 
         // Ordinamento in memoria
         return articles.stream()
-                .sorted(Comparator.comparing(Article::getPublishedAt, Comparator.nullsLast(Comparator.reverseOrder())))
+                .sorted(ArticleCache.BY_PUBLISHED_DESC)
+                .collect(Collectors.toList());
+    }
+
+    // Pubblico: lista del blog senza il corpo degli articoli, già ordinata dalla cache
+    public List<ArticleSummary> getPublishedArticleSummaries() throws ExecutionException, InterruptedException {
+        Optional<List<ArticleSummary>> cached = articleCache.getPublishedSummaries();
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        return getPublishedArticles().stream()
+                .map(ArticleSummary::of)
                 .collect(Collectors.toList());
     }
 
@@ -41,14 +62,28 @@ public class ArticleService {
         // ma per createdAt di solito l'indice automatico basta se non ci sono filtri where.
         // Se articlesCollection.orderBy("createdAt") fallisce, possiamo fare come sopra.
         // Per sicurezza, facciamo ordinamento in memoria anche qui.
+        Optional<List<Article>> cached = articleCache.getAllArticles();
+        if (cached.isPresent()) {
+            return cached.get();
+        }
         List<Article> articles = articlesCollection.get().get().toObjects(Article.class);
         
         return articles.stream()
-                .sorted(Comparator.comparing(Article::getCreatedAt, Comparator.nullsLast(Comparator.reverseOrder())))
+                .sorted(ArticleCache.BY_CREATED_DESC)
                 .collect(Collectors.toList());
     }
 
+    // Admin: articoli dal più recente, una pagina alla volta
+    public Page<Article> getArticlesPageForAdmin(String pageToken, Integer pageSize) throws ExecutionException, InterruptedException {
+        Query query = articlesCollection.orderBy("createdAt", Query.Direction.DESCENDING);
+        return cursorPaginator.fetchPage(query, "articles", pageToken, pageSize, doc -> doc.toObject(Article.class));
+    }
+
     public Article getArticleBySlug(String slug) throws ExecutionException, InterruptedException {
+        Optional<Map<String, Article>> cached = articleCache.getArticlesBySlug();
+        if (cached.isPresent()) {
+            return cached.get().get(slug);
+        }
         Query query = articlesCollection.whereEqualTo("slug", slug).limit(1);
         List<Article> articles = query.get().get().toObjects(Article.class);
         return articles.isEmpty() ? null : articles.get(0);
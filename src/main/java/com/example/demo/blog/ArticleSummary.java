@@ -0,0 +1,61 @@
+package com.example.demo.blog;
+
+import com.google.cloud.Timestamp;
+import lombok.Data;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Versione leggera di un articolo per la lista del blog: stessi metadati, ma al posto di content/content_EN
+ * solo un breve estratto in testo semplice. Il corpo completo si legge da /api/blog/{slug}.
+ */
+@Data
+public class ArticleSummary {
+
+    private static final int EXCERPT_LENGTH = 200;
+    private static final Pattern HTML_TAGS = Pattern.compile("<[^>]*>");
+
+    private String id;
+    private String title;
+    private String slug;
+    private String excerpt;
+    private List<String> imageUrls;
+    private List<String> relatedProductIds;
+    private String status;
+
+    private Timestamp createdAt;
+    private Timestamp publishedAt;
+
+    // Campi in Inglese
+    private String title_EN;
+    private String excerpt_EN;
+
+    public static ArticleSummary of(Article article) {
+        ArticleSummary summary = new ArticleSummary();
+        summary.setId(article.getId());
+        summary.setTitle(article.getTitle());
+        summary.setSlug(article.getSlug());
+        summary.setExcerpt(excerpt(article.getContent()));
+        summary.setImageUrls(article.getImageUrls());
+        summary.setRelatedProductIds(article.getRelatedProductIds());
+        summary.setStatus(article.getStatus());
+        summary.setCreatedAt(article.getCreatedAt());
+        summary.setPublishedAt(article.getPublishedAt());
+        summary.setTitle_EN(article.getTitle_EN());
+        summary.setExcerpt_EN(excerpt(article.getContent_EN()));
+        return summary;
+    }
+
+    private static String excerpt(String content) {
+        if (content == null) {
+            return null;
+        }
+        String text = HTML_TAGS.matcher(content).replaceAll(" ").replaceAll("\\s+", " ").trim();
+        if (text.length() <= EXCERPT_LENGTH) {
+            return text;
+        }
+        int cut = text.lastIndexOf(' ', EXCERPT_LENGTH);
+        return text.substring(0, cut > 0 ? cut : EXCERPT_LENGTH) + "…";
+    }
+}
@@ -28,6 +28,16 @@ public class BundleController {
         }
     }
 
+    // Endpoint pubblico: bundle attivati dai prodotti nel carrello, serviti dall'indice in memoria
+    @GetMapping("/bundles/for-cart")
+    public ResponseEntity<List<Bundle>> getBundlesForCart(@RequestParam(required = false) List<String> ids) {
+        try {
+            return ResponseEntity.ok(bundleService.getBundlesForCart(ids));
+        } catch (ExecutionException | InterruptedException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+        }
+    }
+
     // Endpoints Admin
     @GetMapping("/admin/bundles")
     public ResponseEntity<List<Bundle>> getAllBundles() {
@@ -50,6 +60,18 @@ public class BundleController {
         }
     }
 
+    @PostMapping("/admin/bundles/import")
+    public ResponseEntity<?> importBundles(@RequestBody List<BundleDTO> bundles) {
+        try {
+            List<String> ids = bundleService.importBundles(bundles);
+            return ResponseEntity.status(HttpStatus.CREATED).body(Map.of("ids", ids, "count", ids.size()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (ExecutionException | InterruptedException e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", e.getMessage()));
+        }
+    }
+
     @PutMapping("/admin/bundles/{id}")
     public ResponseEntity<?> updateBundle(@PathVariable String id, @RequestBody BundleDTO bundleDTO) {
         try {
@@ -0,0 +1,267 @@
+package com.example.demo.bundle;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indice in memoria dei bundle attivi, organizzato per prodotto trigger.
+ * I bundle con active == true restano allineati tramite uno snapshot listener; le date di validità vengono
+ * interpretate una sola volta e l'indice "prodotto trigger -> bundle ordinati" viene ricostruito solo quando
+ * cambiano i bundle o il giorno corrente. Le letture non toccano Firestore.
+ */
+@Component
+public class BundleIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(BundleIndex.class);
+
+    /**
+     * Ordinamento di visualizzazione: priorità decrescente, poi ultimo aggiornamento più recente.
+     */
+    public static final Comparator<Bundle> DISPLAY_ORDER = Comparator.comparingInt(Bundle::getPriority).reversed()
+            .thenComparing((b1, b2) -> compareTimestamps(b2.getUpdatedAt(), b1.getUpdatedAt()));
+
+    private final Query activeBundlesQuery;
+    // Bundle attivi (con la finestra di validità già interpretata) e vista filtrata per il giorno, in un unico riferimento:
+    // il listener e il cambio di data lo sostituiscono sempre per intero
+    private final AtomicReference<IndexSnapshot> snapshot = new AtomicReference<>();
+
+    @Value("${bundle.index.enabled:true}")
+    private boolean indexEnabled;
+
+    @Value("${bundle.index.startup-timeout-ms:5000}")
+    private long startupTimeoutMs;
+
+    private volatile ListenerRegistration registration;
+
+    public BundleIndex(Firestore firestore) {
+        this.activeBundlesQuery = firestore.collection("bundles").whereEqualTo("active", true);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!indexEnabled) {
+            logger.info("Bundle index disabled. Reads will go straight to Firestore.");
+            return;
+        }
+        CountDownLatch firstSnapshot = new CountDownLatch(1);
+        subscribe(firstSnapshot);
+        try {
+            if (!firstSnapshot.await(startupTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Bundle index not loaded within {} ms. Falling back to Firestore until the listener catches up.", startupTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+            registration = null;
+        }
+    }
+
+    /**
+     * Al cambio di data alcuni bundle entrano o escono dalla loro finestra di validità: ricalcoliamo la vista
+     * del giorno dai dati già in memoria, senza rileggere Firestore.
+     */
+    @Scheduled(cron = "${bundle.index.refresh-cron:0 0 0 * * *}")
+    public void refreshForToday() {
+        LocalDate today = LocalDate.now();
+        // updateAndGet: se il listener azzera lo snapshot nel frattempo, non viene ripristinata una vista vecchia
+        if (snapshot.updateAndGet(current -> forDay(current, today)) != null) {
+            logger.debug("Bundle index refreshed for {}.", today);
+        }
+    }
+
+    /**
+     * @return i bundle validi oggi, già ordinati per la visualizzazione, oppure empty se l'indice non è disponibile
+     * e bisogna leggere da Firestore.
+     */
+    public Optional<List<Bundle>> getActiveBundles() {
+        return currentSnapshot().map(IndexSnapshot::active);
+    }
+
+    /**
+     * @return i bundle attivati da almeno uno dei prodotti indicati, senza duplicati e nello stesso ordine di
+     * getActiveBundles, oppure empty se l'indice non è disponibile.
+     */
+    public Optional<List<Bundle>> getBundlesForProducts(Collection<String> productIds) {
+        return currentSnapshot().map(current -> {
+            Set<String> seen = new HashSet<>();
+            List<Bundle> result = new ArrayList<>();
+            for (String productId : productIds) {
+                for (Bundle bundle : current.byTrigger().getOrDefault(productId, Collections.emptyList())) {
+                    if (seen.add(bundle.getId())) {
+                        result.add(bundle);
+                    }
+                }
+            }
+            result.sort(Comparator.comparingInt(b -> current.rank().get(b.getId())));
+            return result;
+        });
+    }
+
+    /**
+     * Legge lo snapshot una sola volta; se è di un giorno precedente (refresh di mezzanotte non ancora partito)
+     * lo ricalcola per oggi sostituendolo solo se nel frattempo non è cambiato.
+     */
+    private Optional<IndexSnapshot> currentSnapshot() {
+        if (!indexEnabled) {
+            return Optional.empty();
+        }
+        if (registration == null) {
+            // Il listener è caduto: proviamo a ri-sottoscriverci alla prima lettura utile.
+            subscribe(null);
+        }
+        IndexSnapshot current = snapshot.get();
+        if (current == null) {
+            return Optional.empty();
+        }
+        LocalDate today = LocalDate.now();
+        if (!current.day().equals(today)) {
+            IndexSnapshot refreshed = forDay(current, today);
+            snapshot.compareAndSet(current, refreshed);
+            current = refreshed;
+        }
+        return Optional.of(current);
+    }
+
+    private static IndexSnapshot forDay(IndexSnapshot current, LocalDate day) {
+        return current == null || current.day().equals(day) ? current : IndexSnapshot.of(current.bundles(), day);
+    }
+
+    private synchronized void subscribe(CountDownLatch firstSnapshot) {
+        if (registration != null) {
+            return;
+        }
+        registration = activeBundlesQuery.addSnapshotListener((querySnapshot, error) -> {
+            if (error != null) {
+                logger.error("Bundle index listener failed: {}", error.getMessage());
+                snapshot.set(null);
+                registration = null;
+            } else if (querySnapshot != null) {
+                snapshot.set(IndexSnapshot.of(load(querySnapshot), LocalDate.now()));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
+    }
+
+    private List<WindowedBundle> load(QuerySnapshot querySnapshot) {
+        List<WindowedBundle> loaded = new ArrayList<>();
+        for (QueryDocumentSnapshot doc : querySnapshot.getDocuments()) {
+            Bundle bundle = doc.toObject(Bundle.class);
+            bundle.setId(doc.getId());
+            loaded.add(WindowedBundle.of(bundle));
+        }
+        return Collections.unmodifiableList(loaded);
+    }
+
+    /**
+     * Verifica se un bundle è valido nella data indicata. Stesse regole dell'indice, per i percorsi senza cache.
+     */
+    public static boolean isValidOn(Bundle bundle, LocalDate day) {
+        return WindowedBundle.of(bundle).isValidOn(day);
+    }
+
+    static int compareTimestamps(Timestamp t1, Timestamp t2) {
+        if (t1 == null || t2 == null) return 0;
+        return t1.compareTo(t2);
+    }
+
+    /**
+     * Bundle con le date validFrom/validTo già convertite (null = nessun limite).
+     */
+    private record WindowedBundle(Bundle bundle, LocalDate validFrom, LocalDate validTo) {
+
+        static WindowedBundle of(Bundle bundle) {
+            LocalDate from;
+            try {
+                from = parseDate(bundle.getValidFrom());
+            } catch (DateTimeParseException e) {
+                // Se il formato è errato, lo consideriamo attivo ma ignoriamo il filtro date
+                return new WindowedBundle(bundle, null, null);
+            }
+            LocalDate to;
+            try {
+                to = parseDate(bundle.getValidTo());
+            } catch (DateTimeParseException e) {
+                to = null;
+            }
+            return new WindowedBundle(bundle, from, to);
+        }
+
+        boolean isValidOn(LocalDate day) {
+            if (validFrom != null && day.isBefore(validFrom)) return false;
+            return validTo == null || !day.isAfter(validTo);
+        }
+
+        private static LocalDate parseDate(String value) {
+            return (value == null || value.isBlank()) ? null : LocalDate.parse(value);
+        }
+    }
+
+    /**
+     * Vista immutabile per un giorno: tutti i bundle attivi così come arrivano dal listener, bundle validi ordinati,
+     * indice per prodotto trigger e posizione di ogni bundle (per ID).
+     */
+    private record IndexSnapshot(LocalDate day, List<WindowedBundle> bundles, List<Bundle> active,
+                                 Map<String, List<Bundle>> byTrigger, Map<String, Integer> rank) {
+
+        static IndexSnapshot of(List<WindowedBundle> bundles, LocalDate day) {
+            List<Bundle> active = new ArrayList<>();
+            for (WindowedBundle windowed : bundles) {
+                if (windowed.isValidOn(day)) {
+                    active.add(windowed.bundle());
+                }
+            }
+            active.sort(DISPLAY_ORDER);
+
+            Map<String, List<Bundle>> byTrigger = new HashMap<>();
+            Map<String, Integer> rank = new HashMap<>();
+            for (Bundle bundle : active) {
+                rank.put(bundle.getId(), rank.size());
+                if (bundle.getTriggerProductIds() == null) {
+                    continue;
+                }
+                for (String triggerId : bundle.getTriggerProductIds()) {
+                    // active è già ordinata, quindi anche ogni lista dell'indice lo è
+                    byTrigger.computeIfAbsent(triggerId, k -> new ArrayList<>()).add(bundle);
+                }
+            }
+            byTrigger.replaceAll((k, v) -> Collections.unmodifiableList(v));
+            return new IndexSnapshot(day, bundles, Collections.unmodifiableList(active), Collections.unmodifiableMap(byTrigger), rank);
+        }
+    }
+}
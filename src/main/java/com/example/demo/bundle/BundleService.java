@@ -1,5 +1,8 @@
 package com.example.demo.bundle;
 
+import com.example.demo.firestore.FirestoreBulkLoader;
+import com.example.demo.product.Product;
+import com.example.demo.product.ProductService;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
@@ -14,12 +17,17 @@ import java.util.stream.Collectors;
 @Service
 public class BundleService {
 
+
+    private final Firestore firestore;
     private final CollectionReference bundlesCollection;
-    private final CollectionReference productsCollection;
+    private final ProductService productService;
+    private final BundleIndex bundleIndex;
 
-    public BundleService(Firestore firestore) {
+    public BundleService(Firestore firestore, ProductService productService, BundleIndex bundleIndex) {
+        this.firestore = firestore;
         this.bundlesCollection = firestore.collection("bundles");
-        this.productsCollection = firestore.collection("products");
+        this.productService = productService;
+        this.bundleIndex = bundleIndex;
     }
 
     public List<Bundle> getAllBundles() throws ExecutionException, InterruptedException {
@@ -33,6 +41,11 @@ public class BundleService {
     }
 
     public List<Bundle> getActiveBundles() throws ExecutionException, InterruptedException {
+        // Percorso veloce: bundle già filtrati e ordinati dall'indice in memoria
+        Optional<List<Bundle>> indexed = bundleIndex.getActiveBundles();
+        if (indexed.isPresent()) {
+            return indexed.get();
+        }
         LocalDate today = LocalDate.now();
         ApiFuture<QuerySnapshot> future = bundlesCollection.whereEqualTo("active", true).get();
         List<QueryDocumentSnapshot> documents = future.get().getDocuments();
@@ -43,9 +56,26 @@ public class BundleService {
                     b.setId(doc.getId());
                     return b;
                 })
-                .filter(b -> isValidTemporally(b, today))
-                .sorted(Comparator.comparingInt(Bundle::getPriority).reversed()
-                        .thenComparing((b1, b2) -> compareTimestamps(b2.getUpdatedAt(), b1.getUpdatedAt())))
+                .filter(b -> BundleIndex.isValidOn(b, today))
+                .sorted(BundleIndex.DISPLAY_ORDER)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Bundle da proporre per un carrello: quelli attivati da almeno uno dei prodotti indicati,
+     * senza duplicati e nello stesso ordine di getActiveBundles.
+     */
+    public List<Bundle> getBundlesForCart(Collection<String> productIds) throws ExecutionException, InterruptedException {
+        if (productIds == null || productIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Optional<List<Bundle>> indexed = bundleIndex.getBundlesForProducts(productIds);
+        if (indexed.isPresent()) {
+            return indexed.get();
+        }
+        Set<String> cartIds = new HashSet<>(productIds);
+        return getActiveBundles().stream()
+                .filter(b -> b.getTriggerProductIds() != null && b.getTriggerProductIds().stream().anyMatch(cartIds::contains))
                 .collect(Collectors.toList());
     }
 
@@ -59,6 +89,71 @@ public class BundleService {
         return future.get().getId();
     }
 
+    /**
+     * Importa più bundle in un colpo solo: la validazione avviene prima di qualsiasi scrittura,
+     * con un'unica lettura in blocco di tutti i prodotti referenziati, e i bundle vengono scritti in batch.
+     * Se anche un solo bundle non è valido non viene importato nulla.
+     * @return gli ID dei bundle creati, nello stesso ordine della richiesta.
+     */
+    public List<String> importBundles(List<BundleDTO> dtos) throws ExecutionException, InterruptedException {
+        if (dtos == null || dtos.isEmpty()) {
+            throw new IllegalArgumentException("No bundles to import");
+        }
+
+        List<String> errors = new ArrayList<>();
+        Set<String> productIds = new LinkedHashSet<>();
+        for (int i = 0; i < dtos.size(); i++) {
+            BundleDTO dto = dtos.get(i);
+            try {
+                validateFields(dto);
+                productIds.addAll(dto.getTriggerProductIds());
+                productIds.addAll(dto.getBundleProductIds());
+            } catch (IllegalArgumentException e) {
+                errors.add("Bundle #" + (i + 1) + describe(dto) + ": " + e.getMessage());
+            }
+        }
+
+        Set<String> missing = findMissingProducts(productIds);
+        if (!missing.isEmpty()) {
+            for (int i = 0; i < dtos.size(); i++) {
+                BundleDTO dto = dtos.get(i);
+                List<String> missingForBundle = new ArrayList<>();
+                for (String id : referencedProducts(dto)) {
+                    if (missing.contains(id)) missingForBundle.add(id);
+                }
+                if (!missingForBundle.isEmpty()) {
+                    errors.add("Bundle #" + (i + 1) + describe(dto) + ": Products not found: " + String.join(", ", missingForBundle));
+                }
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException(String.join("; ", errors));
+        }
+
+        List<String> ids = new ArrayList<>();
+        WriteBatch batch = firestore.batch();
+        int writes = 0;
+        for (BundleDTO dto : dtos) {
+            Bundle bundle = mapDtoToBundle(dto);
+            bundle.setCreatedAt(Timestamp.now());
+            bundle.setUpdatedAt(Timestamp.now());
+
+            DocumentReference docRef = bundlesCollection.document();
+            batch.set(docRef, bundle);
+            ids.add(docRef.getId());
+            if (++writes == FirestoreBulkLoader.MAX_BATCH_WRITES) {
+                batch.commit().get();
+                batch = firestore.batch();
+                writes = 0;
+            }
+        }
+        if (writes > 0) {
+            batch.commit().get();
+        }
+        return ids;
+    }
+
     public void updateBundle(String id, BundleDTO dto) throws ExecutionException, InterruptedException {
         validateBundle(dto);
         DocumentReference docRef = bundlesCollection.document(id);
@@ -89,6 +184,20 @@ public class BundleService {
     }
 
     private void validateBundle(BundleDTO dto) throws ExecutionException, InterruptedException {
+        validateFields(dto);
+
+        // Verifica esistenza prodotti: trigger e prodotti del bundle in un'unica lettura
+        Set<String> missing = findMissingProducts(referencedProducts(dto));
+        if (!missing.isEmpty()) {
+            throw new IllegalArgumentException("Products not found: " + String.join(", ", missing));
+        }
+    }
+
+    /**
+     * Controlli che non richiedono letture su Firestore.
+     */
+    private void validateFields(BundleDTO dto) {
+        if (dto == null) throw new IllegalArgumentException("Bundle is empty");
         if (dto.getName() == null || dto.getName().isBlank()) throw new IllegalArgumentException("Name is mandatory");
         if (dto.getShortDescription() == null || dto.getShortDescription().isBlank()) throw new IllegalArgumentException("Short description is mandatory");
         if (dto.getTriggerProductIds() == null || dto.getTriggerProductIds().isEmpty()) throw new IllegalArgumentException("Trigger products are mandatory");
@@ -108,10 +217,6 @@ public class BundleService {
         if (hasDuplicates(dto.getTriggerProductIds())) throw new IllegalArgumentException("Trigger product IDs must be unique");
         if (hasDuplicates(dto.getBundleProductIds())) throw new IllegalArgumentException("Bundle product IDs must be unique");
 
-        // Verifica esistenza prodotti
-        verifyProductsExist(dto.getTriggerProductIds());
-        verifyProductsExist(dto.getBundleProductIds());
-
         // Verifica coerenza date
         if (dto.getValidFrom() != null && dto.getValidTo() != null) {
             try {
@@ -122,35 +227,34 @@ public class BundleService {
         }
     }
 
-    private boolean isValidTemporally(Bundle b, LocalDate today) {
-        try {
-            if (b.getValidFrom() != null && !b.getValidFrom().isBlank()) {
-                if (today.isBefore(LocalDate.parse(b.getValidFrom()))) return false;
-            }
-            if (b.getValidTo() != null && !b.getValidTo().isBlank()) {
-                if (today.isAfter(LocalDate.parse(b.getValidTo()))) return false;
+    /**
+     * @return gli ID (nell'ordine ricevuto) che non corrispondono a nessun prodotto.
+     */
+    private Set<String> findMissingProducts(Collection<String> ids) throws ExecutionException, InterruptedException {
+        // Un'unica lettura in blocco (cache del catalogo + query parallele) invece di una get per prodotto
+        Map<String, Product> products = productService.getCachedProductsByIds(ids);
+        Set<String> missing = new LinkedHashSet<>();
+        for (String id : ids) {
+            if (!products.containsKey(id)) {
+                missing.add(id);
             }
-        } catch (DateTimeParseException e) {
-            return true; // Se il formato è errato, lo consideriamo attivo ma ignoriamo il filtro date
         }
-        return true;
+        return missing;
     }
 
-    private void verifyProductsExist(List<String> ids) throws ExecutionException, InterruptedException {
-        for (String id : ids) {
-            if (!productsCollection.document(id).get().get().exists()) {
-                throw new IllegalArgumentException("Product not found: " + id);
-            }
-        }
+    private Set<String> referencedProducts(BundleDTO dto) {
+        Set<String> ids = new LinkedHashSet<>();
+        if (dto != null && dto.getTriggerProductIds() != null) ids.addAll(dto.getTriggerProductIds());
+        if (dto != null && dto.getBundleProductIds() != null) ids.addAll(dto.getBundleProductIds());
+        return ids;
     }
 
-    private boolean hasDuplicates(List<String> list) {
-        return new HashSet<>(list).size() < list.size();
+    private String describe(BundleDTO dto) {
+        return (dto != null && dto.getName() != null && !dto.getName().isBlank()) ? " (" + dto.getName() + ")" : "";
     }
 
-    private int compareTimestamps(Timestamp t1, Timestamp t2) {
-        if (t1 == null || t2 == null) return 0;
-        return t1.compareTo(t2);
+    private boolean hasDuplicates(List<String> list) {
+        return new HashSet<>(list).size() < list.size();
     }
 
     private Bundle mapDtoToBundle(BundleDTO dto) {
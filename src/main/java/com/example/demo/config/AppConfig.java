@@ -1,14 +1,115 @@
 package com.example.demo.config;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
+import jakarta.annotation.PreDestroy;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Client HTTP in uscita. Ogni servizio esterno (Brevo, PayPal, Vercel) ha il proprio RestTemplate con un pool di
+ * connessioni Apache HttpClient 5 dedicato, così le connessioni TLS vengono riutilizzate e un servizio lento non
+ * esaurisce le connessioni degli altri. Timeout e dimensione del pool si configurano con
+ * http.client.&lt;nome&gt;.max-connections / connect-timeout-ms / read-timeout-ms.
+ * Le metriche del pool sono esposte come httpcomponents.httpclient.pool.* (tag httpclient=&lt;nome&gt;), la latenza delle
+ * chiamate come http.client.requests grazie al RestTemplateBuilder di Spring Boot.
+ */
 @Configuration
 public class AppConfig {
 
+    private final RestTemplateBuilder restTemplateBuilder;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+    private final List<CloseableHttpClient> httpClients = new CopyOnWriteArrayList<>();
+
+    public AppConfig(RestTemplateBuilder restTemplateBuilder, MeterRegistry meterRegistry, Environment environment) {
+        this.restTemplateBuilder = restTemplateBuilder;
+        this.meterRegistry = meterRegistry;
+        this.environment = environment;
+    }
+
     @Bean
+    @Primary
     public RestTemplate restTemplate() {
-        return new RestTemplate();
+        return pooledRestTemplate("default");
+    }
+
+    @Bean
+    public RestTemplate brevoRestTemplate() {
+        return pooledRestTemplate("brevo");
+    }
+
+    @Bean
+    public RestTemplate paypalRestTemplate() {
+        return pooledRestTemplate("paypal");
+    }
+
+    @Bean
+    public RestTemplate vercelRestTemplate() {
+        return pooledRestTemplate("vercel");
+    }
+
+    @PreDestroy
+    public void closeHttpClients() {
+        for (CloseableHttpClient client : httpClients) {
+            client.close(CloseMode.GRACEFUL);
+        }
+    }
+
+    private RestTemplate pooledRestTemplate(String name) {
+        int maxConnections = property(name, "max-connections", 20);
+        Timeout connectTimeout = Timeout.ofMilliseconds(property(name, "connect-timeout-ms", 5000));
+        Timeout readTimeout = Timeout.ofMilliseconds(property(name, "read-timeout-ms", 15000));
+
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnections)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(connectTimeout)
+                        .setSocketTimeout(readTimeout)
+                        // Le connessioni inattive vengono ricontrollate prima del riuso e rinnovate periodicamente
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                        .setTimeToLive(TimeValue.ofMinutes(5))
+                        .build())
+                .build();
+
+        CloseableHttpClient httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        // Attesa massima di una connessione libera dal pool
+                        .setConnectionRequestTimeout(connectTimeout)
+                        .setResponseTimeout(readTimeout)
+                        .build())
+                .evictExpiredConnections()
+                .evictIdleConnections(TimeValue.ofSeconds(30))
+                .build();
+        httpClients.add(httpClient);
+
+        new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, name).bindTo(meterRegistry);
+
+        return restTemplateBuilder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(httpClient))
+                .build();
+    }
+
+    private int property(String client, String key, int defaultValue) {
+        return environment.getProperty("http.client." + client + "." + key, Integer.class, defaultValue);
     }
 }
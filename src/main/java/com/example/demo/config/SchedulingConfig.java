@@ -0,0 +1,10 @@
+package com.example.demo.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+// Abilita i job @Scheduled (es. pulizia delle prenotazioni di stock scadute)
+@Configuration
+@EnableScheduling
+public class SchedulingConfig {
+}
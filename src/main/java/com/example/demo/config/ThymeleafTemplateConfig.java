@@ -1,16 +1,38 @@
 package com.example.demo.config;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
 import org.thymeleaf.spring6.SpringTemplateEngine;
 import org.thymeleaf.templatemode.TemplateMode;
 import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
 import org.thymeleaf.templateresolver.ITemplateResolver;
 
+import java.util.List;
+
 @Configuration
 public class ThymeleafTemplateConfig {
 
+    private static final Logger logger = LoggerFactory.getLogger(ThymeleafTemplateConfig.class);
+
+    // In produzione i template vengono letti e interpretati una sola volta; in sviluppo mettere a false
+    // per vedere subito le modifiche ai file HTML
+    @Value("${email.templates.cache.enabled:true}")
+    private boolean templateCacheEnabled;
+
+    // Scaduto il TTL il template viene riletto dal classpath alla richiesta successiva
+    @Value("${email.templates.cache.ttl-ms:3600000}")
+    private long templateCacheTtlMs;
+
+    @Value("${email.templates.warm-up:email/order-confirmation-template,email/shipped-order-template,email/invoice-notification-template}")
+    private List<String> warmUpTemplates;
+
     @Bean
     public TemplateEngine emailTemplateEngine() {
         final SpringTemplateEngine templateEngine = new SpringTemplateEngine();
@@ -30,7 +52,30 @@ public class ThymeleafTemplateConfig {
         templateResolver.setSuffix(".html"); // Aggiunge .html alla fine dei nomi dei template
         templateResolver.setTemplateMode(TemplateMode.HTML); // Imposta la modalità di parsing a HTML5
         templateResolver.setCharacterEncoding("UTF-8"); // Imposta la codifica
-        templateResolver.setCacheable(false); // Disabilita la cache per lo sviluppo
+        templateResolver.setCacheable(templateCacheEnabled);
+        if (templateCacheEnabled && templateCacheTtlMs > 0) {
+            templateResolver.setCacheTTLMs(templateCacheTtlMs);
+        }
         return templateResolver;
     }
+
+    /**
+     * Interpreta i template delle email all'avvio, così la prima email inviata non paga lettura e parsing.
+     * Il rendering con un contesto vuoto può fallire sulle espressioni, ma il template è già in cache a quel punto.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpEmailTemplates(ApplicationReadyEvent event) {
+        if (!templateCacheEnabled) {
+            return;
+        }
+        TemplateEngine templateEngine = event.getApplicationContext().getBean("emailTemplateEngine", TemplateEngine.class);
+        for (String template : warmUpTemplates) {
+            try {
+                templateEngine.process(template, new Context());
+            } catch (Exception e) {
+                logger.debug("Warm-up render of {} ended early: {}", template, e.getMessage());
+            }
+        }
+        logger.info("Email templates warmed up: {}", warmUpTemplates);
+    }
 }
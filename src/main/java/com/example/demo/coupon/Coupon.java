@@ -13,6 +13,7 @@ public class Coupon {
     private String id;
 
     private String code;
+    private String normalizedCode; // Codice maiuscolo e senza spazi ai bordi, usato per le ricerche (vedi CouponService.normalizeCode)
     private String description;
     private DiscountType discountType;
     private BigDecimal discountValue;
@@ -69,6 +69,18 @@ public class CouponController {
         }
     }
 
+    // Migrazione una tantum: aggiunge normalizedCode ai coupon creati prima del campo
+    @PostMapping("/admin/coupons/migrate-normalized-codes")
+    public ResponseEntity<?> migrateNormalizedCodes() {
+        try {
+            int updated = couponService.migrateNormalizedCodes();
+            return ResponseEntity.ok(Map.of("success", true, "updated", updated));
+        } catch (ExecutionException | InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Errore durante la migrazione dei coupon", e);
+        }
+    }
+
     @DeleteMapping("/admin/coupons/{id}")
     public ResponseEntity<Void> deleteCoupon(@PathVariable String id) {
         try {
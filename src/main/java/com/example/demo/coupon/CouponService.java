@@ -1,44 +1,143 @@
 package com.example.demo.coupon;
 
+import com.example.demo.firestore.FirestoreBulkLoader;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+/**
+ * Gestione coupon.
+ * Per la verifica al checkout i coupon sono indicizzati in memoria per codice normalizzato
+ * (maiuscolo, senza spazi ai bordi) e l'indice è tenuto aggiornato da uno snapshot listener; se il listener
+ * non è disponibile la ricerca avviene sul campo normalizedCode, così le due strade danno la stessa risposta.
+ * L'utilizzo viene contato con incrementi "ciechi" su contatori a shard (vedi recordUsage) e il limite viene
+ * controllato sulla loro somma, tenuta in memoria da un secondo listener.
+ */
 @Service
 public class CouponService {
 
+    private static final Logger logger = LoggerFactory.getLogger(CouponService.class);
+
+    private static final String USAGE_SHARDS_COLLECTION = "usageShards";
+
     private final Firestore firestore;
     private final CollectionReference couponCollection;
+    private final AtomicReference<Map<String, Coupon>> index = new AtomicReference<>();
+    // Somma degli shard di utilizzo per ID coupon, aggiornata da un listener sul collection group degli shard
+    private final AtomicReference<Map<String, Long>> usageTotals = new AtomicReference<>();
+
+    @Value("${coupon.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${coupon.cache.startup-timeout-ms:5000}")
+    private long startupTimeoutMs;
+
+    @Value("${coupon.usage.shards:10}")
+    private int usageShards;
+
+    private volatile ListenerRegistration registration;
+    private volatile ListenerRegistration usageRegistration;
 
     public CouponService(Firestore firestore) {
         this.firestore = firestore;
         this.couponCollection = firestore.collection("coupons");
     }
 
+    @PostConstruct
+    public void start() {
+        if (!cacheEnabled) {
+            return;
+        }
+        CountDownLatch firstSnapshot = new CountDownLatch(1);
+        CountDownLatch firstUsageSnapshot = new CountDownLatch(1);
+        subscribe(firstSnapshot);
+        subscribeUsage(firstUsageSnapshot);
+        try {
+            long deadline = System.currentTimeMillis() + startupTimeoutMs;
+            if (!firstSnapshot.await(startupTimeoutMs, TimeUnit.MILLISECONDS)
+                    || !firstUsageSnapshot.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                logger.warn("Coupon index not loaded within {} ms. Falling back to Firestore queries until the listener catches up.", startupTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+            registration = null;
+        }
+        ListenerRegistration currentUsage = usageRegistration;
+        if (currentUsage != null) {
+            currentUsage.remove();
+            usageRegistration = null;
+        }
+    }
+
+    public static String normalizeCode(String code) {
+        return code == null ? null : code.trim().toUpperCase(Locale.ROOT);
+    }
+
     public List<Coupon> getAllCoupons() throws ExecutionException, InterruptedException {
         ApiFuture<QuerySnapshot> future = couponCollection.orderBy("code").get();
         List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-        return documents.stream()
+        List<Coupon> coupons = documents.stream()
                 .map(doc -> doc.toObject(Coupon.class))
                 .collect(Collectors.toList());
+        // Nel pannello admin usageCount mostra il totale, shard compresi
+        for (Coupon coupon : coupons) {
+            coupon.setUsageCount((int) getUsageCount(coupon));
+        }
+        return coupons;
     }
 
-    public Optional<Coupon> verifyCoupon(String code) throws ExecutionException, InterruptedException {
-        // 1. Query semplice che il tuo Firestore sa già gestire
-        ApiFuture<QuerySnapshot> future = couponCollection.whereEqualTo("code", code).get();
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-
+    /**
+     * Cerca un coupon per codice, senza verificarne la validità.
+     */
+    public Optional<Coupon> findByCode(String code) throws ExecutionException, InterruptedException {
+        if (code == null || code.isBlank()) {
+            return Optional.empty();
+        }
+        Map<String, Coupon> current = currentIndex();
+        if (current != null) {
+            return Optional.ofNullable(current.get(normalizeCode(code)));
+        }
+        // Indice non disponibile: query diretta sul codice normalizzato, con le stesse regole dell'indice
+        List<QueryDocumentSnapshot> documents = couponCollection.whereEqualTo("normalizedCode", normalizeCode(code)).limit(1).get().get().getDocuments();
         if (documents.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(documents.get(0).toObject(Coupon.class));
+    }
+
+    public Optional<Coupon> verifyCoupon(String code) throws ExecutionException, InterruptedException {
+        Optional<Coupon> couponOpt = findByCode(code);
+        if (couponOpt.isEmpty()) {
             return Optional.empty(); // Nessun coupon trovato con questo codice
         }
 
-        // 2. Filtro logico applicato in Java (allineato al resto del progetto)
-        Coupon coupon = documents.get(0).toObject(Coupon.class);
+        Coupon coupon = couponOpt.get();
 
         // Se non è attivo, non è valido
         if (!coupon.isActive()) {
@@ -51,7 +150,7 @@ public class CouponService {
         }
 
         // Se ha un limite di utilizzo e questo è stato raggiunto, non è valido
-        if (coupon.getUsageLimit() > 0 && coupon.getUsageCount() >= coupon.getUsageLimit()) {
+        if (coupon.getUsageLimit() > 0 && getUsageCount(coupon) >= coupon.getUsageLimit()) {
             return Optional.empty();
         }
 
@@ -60,35 +159,159 @@ public class CouponService {
     }
 
     public Coupon createCoupon(Coupon coupon) throws ExecutionException, InterruptedException {
-        Query query = couponCollection.whereEqualTo("code", coupon.getCode());
-        if (!query.get().get().isEmpty()) {
+        // Il controllo sul codice normalizzato evita duplicati che differiscono solo per maiuscole/spazi
+        if (findByCode(coupon.getCode()).isPresent()) {
             throw new IllegalArgumentException("Un coupon con il codice '" + coupon.getCode() + "' esiste già.");
         }
 
         DocumentReference docRef = couponCollection.document();
         coupon.setId(docRef.getId());
+        coupon.setNormalizedCode(normalizeCode(coupon.getCode()));
 
         docRef.set(coupon).get();
         return coupon;
     }
 
     public void deleteCoupon(String id) throws ExecutionException, InterruptedException {
-        couponCollection.document(id).delete().get();
-    }
-    
-    public void incrementCouponUsage(String couponId) throws ExecutionException, InterruptedException {
-        DocumentReference couponRef = couponCollection.document(couponId);
-        firestore.runTransaction(transaction -> {
-            DocumentSnapshot snapshot = transaction.get(couponRef).get();
-            // Controlla se il campo esiste prima di incrementarlo
-            if (snapshot.contains("usageCount")) {
-                long newUsageCount = snapshot.getLong("usageCount") + 1;
-                transaction.update(couponRef, "usageCount", newUsageCount);
-            } else {
-                // Se non esiste, lo crea e lo imposta a 1
-                transaction.update(couponRef, "usageCount", 1);
+        // Eliminiamo anche gli shard di utilizzo: le sotto-collezioni non vengono rimosse con il documento padre
+        DocumentReference couponRef = couponCollection.document(id);
+        WriteBatch batch = firestore.batch();
+        for (QueryDocumentSnapshot shard : couponRef.collection(USAGE_SHARDS_COLLECTION).get().get().getDocuments()) {
+            batch.delete(shard.getReference());
+        }
+        batch.delete(couponRef);
+        batch.commit().get();
+    }
+
+    /**
+     * Aggiunge a {@code writer} (transazione o batch dell'ordine) un utilizzo del coupon.
+     * L'incremento va su uno shard scelto a caso in coupons/{id}/usageShards: è una scrittura "cieca", senza letture,
+     * quindi gli ordini concorrenti con lo stesso coupon non entrano in conflitto né vengono serializzati.
+     * Il limite di utilizzo viene controllato da verifyCoupon sulla somma degli shard in cache; ordini confermati
+     * nello stesso istante possono superarlo di poco, per il tempo che il listener impiega a vedere gli incrementi.
+     */
+    public void recordUsage(UpdateBuilder<?> writer, String couponId) {
+        DocumentReference shard = couponCollection.document(couponId)
+                .collection(USAGE_SHARDS_COLLECTION)
+                .document(String.valueOf(ThreadLocalRandom.current().nextInt(usageShards)));
+        writer.set(shard, Map.of("count", FieldValue.increment(1)), SetOptions.merge());
+    }
+
+    /**
+     * Utilizzi totali del coupon: il vecchio campo usageCount (conteggi precedenti agli shard) più la somma degli shard.
+     */
+    public long getUsageCount(Coupon coupon) throws ExecutionException, InterruptedException {
+        Map<String, Long> totals = currentUsageTotals();
+        long sharded;
+        if (totals != null) {
+            sharded = totals.getOrDefault(coupon.getId(), 0L);
+        } else {
+            // Listener non disponibile: sommiamo gli shard del solo coupon richiesto (al massimo usageShards documenti)
+            sharded = 0;
+            for (QueryDocumentSnapshot shard : couponCollection.document(coupon.getId()).collection(USAGE_SHARDS_COLLECTION).get().get().getDocuments()) {
+                Long count = shard.getLong("count");
+                sharded += count != null ? count : 0;
+            }
+        }
+        return coupon.getUsageCount() + sharded;
+    }
+
+    /**
+     * Migrazione una tantum: completa normalizedCode sui coupon creati prima del campo, altrimenti la query di fallback
+     * (listener non disponibile) non li troverebbe. Da lanciare dall'endpoint admin dopo il deploy.
+     * @return il numero di coupon aggiornati.
+     */
+    public int migrateNormalizedCodes() throws ExecutionException, InterruptedException {
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        int updated = 0;
+        for (QueryDocumentSnapshot doc : couponCollection.get().get().getDocuments()) {
+            String normalized = normalizeCode(doc.getString("code"));
+            if (normalized != null && !normalized.equals(doc.getString("normalizedCode"))) {
+                batch.update(doc.getReference(), "normalizedCode", normalized);
+                updated++;
+                if (++pending == FirestoreBulkLoader.MAX_BATCH_WRITES) {
+                    batch.commit().get();
+                    batch = firestore.batch();
+                    pending = 0;
+                }
             }
+        }
+        if (pending > 0) {
+            batch.commit().get();
+        }
+        logger.info("Normalized code added to {} coupons.", updated);
+        return updated;
+    }
+
+    private Map<String, Coupon> currentIndex() {
+        if (!cacheEnabled) {
             return null;
-        }).get();
+        }
+        if (registration == null) {
+            // Il listener è caduto: ri-sottoscrizione e, nel frattempo, query dirette
+            subscribe(null);
+        }
+        return index.get();
+    }
+
+    private Map<String, Long> currentUsageTotals() {
+        if (!cacheEnabled) {
+            return null;
+        }
+        if (usageRegistration == null) {
+            subscribeUsage(null);
+        }
+        return usageTotals.get();
+    }
+
+    private synchronized void subscribeUsage(CountDownLatch firstSnapshot) {
+        if (usageRegistration != null) {
+            return;
+        }
+        usageRegistration = firestore.collectionGroup(USAGE_SHARDS_COLLECTION).addSnapshotListener((querySnapshot, error) -> {
+            if (error != null) {
+                logger.error("Coupon usage listener failed: {}", error.getMessage());
+                usageTotals.set(null);
+                usageRegistration = null;
+            } else if (querySnapshot != null) {
+                Map<String, Long> totals = new HashMap<>();
+                for (QueryDocumentSnapshot shard : querySnapshot.getDocuments()) {
+                    // Lo shard è in coupons/{couponId}/usageShards/{n}
+                    String couponId = shard.getReference().getParent().getParent().getId();
+                    Long count = shard.getLong("count");
+                    totals.merge(couponId, count != null ? count : 0L, Long::sum);
+                }
+                usageTotals.set(Collections.unmodifiableMap(totals));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
+    }
+
+    private synchronized void subscribe(CountDownLatch firstSnapshot) {
+        if (registration != null) {
+            return;
+        }
+        registration = couponCollection.addSnapshotListener((querySnapshot, error) -> {
+            if (error != null) {
+                logger.error("Coupon listener failed: {}", error.getMessage());
+                index.set(null);
+                registration = null;
+            } else if (querySnapshot != null) {
+                Map<String, Coupon> byCode = new HashMap<>();
+                for (QueryDocumentSnapshot doc : querySnapshot.getDocuments()) {
+                    Coupon coupon = doc.toObject(Coupon.class);
+                    if (coupon.getCode() != null) {
+                        byCode.put(normalizeCode(coupon.getCode()), coupon);
+                    }
+                }
+                index.set(Collections.unmodifiableMap(byCode));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
     }
 }
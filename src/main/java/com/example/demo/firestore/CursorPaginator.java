@@ -0,0 +1,105 @@
+package com.example.demo.firestore;
+
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Paginazione a cursore sulle query Firestore (orderBy + startAfter + limit).
+ * Il token di pagina è l'ID dell'ultimo documento restituito codificato in base64: il client non deve interpretarlo.
+ * Ogni pagina costa al massimo pageSize + 2 letture (la pagina, un documento di controllo e il cursore).
+ */
+@Component
+public class CursorPaginator {
+
+    private final Firestore firestore;
+
+    @Value("${pagination.default-page-size:25}")
+    private int defaultPageSize;
+
+    @Value("${pagination.max-page-size:100}")
+    private int maxPageSize;
+
+    // Se true, le richieste senza pageSize né pageToken ricevono ancora la lista completa come prima;
+    // a false anche queste ricevono la prima pagina
+    @Value("${pagination.legacy-unpaged:true}")
+    private boolean legacyUnpaged;
+
+    public CursorPaginator(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    /**
+     * @return true se la richiesta va servita con la vecchia risposta non paginata.
+     */
+    public boolean isLegacyRequest(String pageToken, Integer pageSize) {
+        return legacyUnpaged && pageToken == null && pageSize == null;
+    }
+
+    /**
+     * Legge una pagina di {@code orderedQuery}, che deve già contenere l'orderBy desiderato.
+     * @param collection la collezione dei documenti restituiti dalla query, usata per risolvere il cursore.
+     * @throws IllegalArgumentException se il token non è valido o il documento a cui punta non esiste più.
+     */
+    public <T> Page<T> fetchPage(Query orderedQuery, String collection, String pageToken, Integer pageSize,
+                                 Function<DocumentSnapshot, T> mapper) throws ExecutionException, InterruptedException {
+        int size = resolvePageSize(pageSize);
+
+        Query query = orderedQuery;
+        if (pageToken != null && !pageToken.isBlank()) {
+            DocumentSnapshot cursor = firestore.collection(collection).document(decode(pageToken)).get().get();
+            if (!cursor.exists()) {
+                throw new IllegalArgumentException("Invalid or expired page token");
+            }
+            query = query.startAfter(cursor);
+        }
+
+        // Un documento in più ci dice se esiste una pagina successiva senza una seconda query
+        List<QueryDocumentSnapshot> documents = query.limit(size + 1).get().get().getDocuments();
+        boolean hasMore = documents.size() > size;
+        List<QueryDocumentSnapshot> pageDocuments = hasMore ? documents.subList(0, size) : documents;
+
+        List<T> items = new ArrayList<>(pageDocuments.size());
+        for (QueryDocumentSnapshot doc : pageDocuments) {
+            items.add(mapper.apply(doc));
+        }
+        String nextPageToken = hasMore ? encode(pageDocuments.get(pageDocuments.size() - 1).getId()) : null;
+        return new Page<>(items, nextPageToken);
+    }
+
+    private int resolvePageSize(Integer pageSize) {
+        if (pageSize == null) {
+            return defaultPageSize;
+        }
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be >= 1");
+        }
+        return Math.min(pageSize, maxPageSize);
+    }
+
+    private static String encode(String documentId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(documentId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String pageToken) {
+        try {
+            String documentId = new String(Base64.getUrlDecoder().decode(pageToken), StandardCharsets.UTF_8);
+            if (documentId.isEmpty() || documentId.contains("/")) {
+                throw new IllegalArgumentException("Invalid or expired page token");
+            }
+            return documentId;
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid or expired page token");
+        }
+    }
+}
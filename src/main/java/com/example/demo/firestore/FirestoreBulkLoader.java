@@ -0,0 +1,95 @@
+package com.example.demo.firestore;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Caricamento in blocco di documenti Firestore tramite query whereIn.
+ * Gli ID vengono divisi in blocchi da 30 (limite di whereIn) e le query partono tutte insieme,
+ * con un tetto al numero di richieste contemporanee, invece di attendere un blocco alla volta.
+ */
+@Component
+public class FirestoreBulkLoader {
+
+    // Numero massimo di valori ammessi da Firestore in una clausola whereIn
+    public static final int WHERE_IN_LIMIT = 30;
+
+    // Numero massimo di scritture ammesse da Firestore in un singolo WriteBatch
+    public static final int MAX_BATCH_WRITES = 500;
+
+    private final Firestore firestore;
+
+    @Value("${firestore.bulk.max-in-flight:8}")
+    private int maxInFlight;
+
+    public FirestoreBulkLoader(Firestore firestore) {
+        this.firestore = firestore;
+    }
+
+    /**
+     * Carica i documenti della collezione con gli ID indicati. Gli ID inesistenti non compaiono nella mappa.
+     */
+    public <T> Map<String, T> loadByIds(String collection, Collection<String> ids, Class<T> clazz) throws ExecutionException, InterruptedException {
+        return loadByIds(collection, ids, doc -> doc.toObject(clazz));
+    }
+
+    public <T> Map<String, T> loadByIds(String collection, Collection<String> ids, Function<DocumentSnapshot, T> mapper) throws ExecutionException, InterruptedException {
+        Map<String, T> results = new HashMap<>();
+        for (QueryDocumentSnapshot doc : queryWhereIn(firestore.collection(collection), FieldPath.documentId(), ids)) {
+            results.put(doc.getId(), mapper.apply(doc));
+        }
+        return results;
+    }
+
+    /**
+     * Esegue {@code base.whereIn(field, values)} su blocchi di valori in parallelo e concatena i risultati.
+     */
+    public List<QueryDocumentSnapshot> queryWhereIn(Query base, String field, Collection<?> values) throws ExecutionException, InterruptedException {
+        return queryWhereIn(base, FieldPath.of(field), values);
+    }
+
+    public List<QueryDocumentSnapshot> queryWhereIn(Query base, FieldPath field, Collection<?> values) throws ExecutionException, InterruptedException {
+        if (values == null || values.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Object> distinct = new ArrayList<>(new LinkedHashSet<>(values));
+        distinct.remove(null);
+
+        Semaphore inFlight = new Semaphore(Math.max(1, maxInFlight));
+        List<ApiFuture<QuerySnapshot>> futures = new ArrayList<>();
+        for (int i = 0; i < distinct.size(); i += WHERE_IN_LIMIT) {
+            List<Object> partition = distinct.subList(i, Math.min(i + WHERE_IN_LIMIT, distinct.size()));
+            // Blocca solo se ci sono già troppe query in corso; il permesso si libera al completamento
+            inFlight.acquire();
+            ApiFuture<QuerySnapshot> future = base.whereIn(field, new ArrayList<>(partition)).get();
+            future.addListener(inFlight::release, MoreExecutors.directExecutor());
+            futures.add(future);
+        }
+
+        List<QueryDocumentSnapshot> documents = new ArrayList<>();
+        for (QuerySnapshot snapshot : ApiFutures.allAsList(futures).get()) {
+            documents.addAll(snapshot.getDocuments());
+        }
+        return documents;
+    }
+}
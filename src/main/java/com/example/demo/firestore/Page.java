@@ -0,0 +1,10 @@
+package com.example.demo.firestore;
+
+import java.util.List;
+
+/**
+ * Una pagina di risultati. {@code nextPageToken} è opaco per il client e va ripassato così com'è
+ * per leggere la pagina successiva; è null quando non ci sono altri risultati.
+ */
+public record Page<T>(List<T> items, String nextPageToken) {
+}
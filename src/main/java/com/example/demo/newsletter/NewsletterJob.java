@@ -0,0 +1,47 @@
+package com.example.demo.newsletter;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.annotation.DocumentId;
+import lombok.Data;
+
+/**
+ * Stato di un invio newsletter in background, salvato nella collezione "newsletter_jobs".
+ * {@code cursor} è l'ID dell'ultimo iscritto elaborato: un job interrotto riprende da lì.
+ */
+@Data
+public class NewsletterJob {
+
+    public static final String STATUS_QUEUED = "QUEUED";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    @DocumentId
+    private String id;
+
+    private String subject;
+    @JsonIgnore
+    private String htmlContent;
+
+    private String status;
+    private String cursor;
+    private Long totalSubscribers;
+    private long sentCount;
+    private long failedCount;
+    private String lastError;
+
+    // Lease: l'istanza che sta elaborando il job e fino a quando; scaduto il lease il job può essere ripreso
+    private String leaseOwner;
+    private Timestamp leaseExpiresAt;
+
+    private Timestamp createdAt;
+    private Timestamp startedAt;
+    private Timestamp updatedAt;
+    private Timestamp completedAt;
+
+    @JsonIgnore
+    public boolean isFinished() {
+        return STATUS_COMPLETED.equals(status) || STATUS_FAILED.equals(status);
+    }
+}
@@ -0,0 +1,419 @@
+package com.example.demo.newsletter;
+
+import com.example.demo.firestore.FirestoreBulkLoader;
+import com.example.demo.order.BrevoEmailService;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.common.util.concurrent.RateLimiter;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Invio della newsletter in background.
+ * Il job scorre gli iscritti a pagine ordinate per ID, li invia a Brevo in blocchi (messageVersions) con concorrenza
+ * e frequenza massima configurabili, ritenta gli errori temporanei con backoff esponenziale e salva dopo ogni pagina
+ * il cursore e i contatori. Un job interrotto (riavvio, crash) viene ripreso dall'ultimo cursore salvato allo scadere
+ * del suo lease: in quel caso al massimo l'ultima pagina può essere inviata due volte.
+ * Ogni aggiornamento del job verifica in transazione che il lease appartenga ancora a questa istanza: se un'altra
+ * istanza lo ha preso in carico, l'invio si ferma invece di proseguire in parallelo.
+ * I destinatari falliti definitivamente finiscono nella sotto-collezione "failures" del job.
+ */
+@Service
+public class NewsletterJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(NewsletterJobService.class);
+
+
+    private final Firestore firestore;
+    private final CollectionReference jobsCollection;
+    private final CollectionReference subscribersCollection;
+    private final BrevoEmailService emailService;
+    private final NewsletterService newsletterService;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private final Set<String> activeJobs = ConcurrentHashMap.newKeySet();
+    // Un job alla volta per istanza: la concorrenza è sugli invii all'interno del job
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "newsletter-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ExecutorService deliveryExecutor;
+    private RateLimiter rateLimiter;
+
+    @Value("${newsletter.delivery.page-size:500}")
+    private int pageSize;
+
+    // Destinatari per chiamata Brevo (messageVersions ne accetta fino a 1000)
+    @Value("${newsletter.delivery.batch-size:50}")
+    private int batchSize;
+
+    @Value("${newsletter.delivery.concurrency:4}")
+    private int concurrency;
+
+    @Value("${newsletter.delivery.requests-per-second:5}")
+    private double requestsPerSecond;
+
+    @Value("${newsletter.delivery.max-attempts:4}")
+    private int maxAttempts;
+
+    @Value("${newsletter.delivery.initial-backoff-ms:1000}")
+    private long initialBackoffMs;
+
+    @Value("${newsletter.delivery.lease-ms:120000}")
+    private long leaseMs;
+
+    public NewsletterJobService(Firestore firestore, BrevoEmailService emailService, NewsletterService newsletterService) {
+        this.firestore = firestore;
+        this.jobsCollection = firestore.collection("newsletter_jobs");
+        this.subscribersCollection = firestore.collection("newsletterSubscriptions");
+        this.emailService = emailService;
+        this.newsletterService = newsletterService;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.deliveryExecutor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        this.rateLimiter = RateLimiter.create(requestsPerSecond);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        deliveryExecutor.shutdownNow();
+    }
+
+    /**
+     * Registra un nuovo invio e lo avvia in background.
+     * @return l'ID del job, da usare con getJob per seguirne l'avanzamento.
+     */
+    public String startJob(String subject, String htmlContent) throws ExecutionException, InterruptedException {
+        if (subject == null || subject.isBlank() || htmlContent == null || htmlContent.isBlank()) {
+            throw new IllegalArgumentException("Subject and message are required");
+        }
+        DocumentReference jobRef = jobsCollection.document();
+        NewsletterJob job = new NewsletterJob();
+        job.setSubject(subject);
+        job.setHtmlContent(htmlContent);
+        job.setStatus(NewsletterJob.STATUS_QUEUED);
+        job.setTotalSubscribers((long) newsletterService.countSubscribers());
+        job.setCreatedAt(Timestamp.now());
+        job.setUpdatedAt(Timestamp.now());
+        jobRef.set(job).get();
+
+        submit(jobRef.getId());
+        logger.info("Newsletter job {} queued for {} subscribers.", jobRef.getId(), job.getTotalSubscribers());
+        return jobRef.getId();
+    }
+
+    public NewsletterJob getJob(String jobId) throws ExecutionException, InterruptedException {
+        DocumentSnapshot doc = jobsCollection.document(jobId).get().get();
+        return doc.exists() ? doc.toObject(NewsletterJob.class) : null;
+    }
+
+    /**
+     * Riprende i job rimasti in sospeso, ad esempio dopo un riavvio dell'istanza che li stava elaborando.
+     */
+    @Scheduled(fixedDelayString = "${newsletter.delivery.resume-interval-ms:60000}", initialDelayString = "${newsletter.delivery.resume-interval-ms:60000}")
+    public void resumeInterruptedJobs() {
+        try {
+            List<QueryDocumentSnapshot> pending = jobsCollection
+                    .whereIn("status", List.of(NewsletterJob.STATUS_QUEUED, NewsletterJob.STATUS_RUNNING))
+                    .get().get().getDocuments();
+            for (QueryDocumentSnapshot doc : pending) {
+                if (isLeaseExpired(doc.getTimestamp("leaseExpiresAt"))) {
+                    submit(doc.getId());
+                }
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Failed to look up pending newsletter jobs: {}", e.getMessage());
+        }
+    }
+
+    private void submit(String jobId) {
+        if (activeJobs.add(jobId)) {
+            jobExecutor.submit(() -> runJob(jobId));
+        }
+    }
+
+    private void runJob(String jobId) {
+        try {
+            NewsletterJob job = claim(jobId);
+            if (job != null) {
+                deliver(job);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.error("Newsletter job {} failed: {}", jobId, e.getMessage());
+            markFailed(jobId, e.getMessage());
+        } finally {
+            activeJobs.remove(jobId);
+        }
+    }
+
+    /**
+     * Prende in carico il job se non è concluso e nessun'altra istanza ne ha il lease.
+     * @return il job aggiornato, o null se non va elaborato da questa istanza.
+     */
+    private NewsletterJob claim(String jobId) throws ExecutionException, InterruptedException {
+        DocumentReference jobRef = jobsCollection.document(jobId);
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(jobRef).get();
+            if (!snapshot.exists()) {
+                return null;
+            }
+            NewsletterJob job = snapshot.toObject(NewsletterJob.class);
+            if (job.isFinished() || (!instanceId.equals(job.getLeaseOwner()) && !isLeaseExpired(job.getLeaseExpiresAt()))) {
+                return null;
+            }
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("status", NewsletterJob.STATUS_RUNNING);
+            updates.put("leaseOwner", instanceId);
+            updates.put("leaseExpiresAt", leaseDeadline());
+            updates.put("updatedAt", Timestamp.now());
+            if (job.getStartedAt() == null) {
+                updates.put("startedAt", Timestamp.now());
+            }
+            transaction.update(jobRef, updates);
+            return job;
+        }).get();
+    }
+
+    private void deliver(NewsletterJob job) throws ExecutionException, InterruptedException {
+        DocumentReference jobRef = jobsCollection.document(job.getId());
+        String cursor = job.getCursor();
+        long sent = job.getSentCount();
+        long failed = job.getFailedCount();
+
+        while (true) {
+            Query query = subscribersCollection.orderBy(FieldPath.documentId()).select("email").limit(pageSize);
+            if (cursor != null) {
+                query = query.startAfter(cursor);
+            }
+            List<QueryDocumentSnapshot> page = query.get().get().getDocuments();
+            if (page.isEmpty()) {
+                break;
+            }
+            // Rinnoviamo il lease prima di inviare, così una pagina lenta ha a disposizione un lease intero
+            if (!updateIfLeaseHeld(jobRef, Map.of("leaseExpiresAt", leaseDeadline()))) {
+                logger.warn("Newsletter job {}: lease taken over by another instance. Stopping delivery.", job.getId());
+                return;
+            }
+
+            Set<String> emails = new LinkedHashSet<>();
+            for (QueryDocumentSnapshot doc : page) {
+                String email = doc.getString("email");
+                if (email != null && !email.isBlank()) {
+                    emails.add(email.trim());
+                }
+            }
+
+            List<Future<List<Map<String, Object>>>> chunks = new ArrayList<>();
+            List<String> chunk = new ArrayList<>();
+            for (String email : emails) {
+                chunk.add(email);
+                if (chunk.size() == batchSize) {
+                    chunks.add(submitChunk(job, chunk));
+                    chunk = new ArrayList<>();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(submitChunk(job, chunk));
+            }
+
+            List<Map<String, Object>> failures = new ArrayList<>();
+            for (Future<List<Map<String, Object>>> result : chunks) {
+                failures.addAll(result.get());
+            }
+            sent += emails.size() - failures.size();
+            failed += failures.size();
+            cursor = page.get(page.size() - 1).getId();
+
+            if (!saveProgress(jobRef, cursor, sent, failed, failures)) {
+                logger.warn("Newsletter job {}: lease taken over by another instance. Stopping delivery.", job.getId());
+                return;
+            }
+            logger.info("Newsletter job {}: {} sent, {} failed so far.", job.getId(), sent, failed);
+
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("status", NewsletterJob.STATUS_COMPLETED);
+        updates.put("leaseOwner", null);
+        updates.put("leaseExpiresAt", null);
+        updates.put("completedAt", Timestamp.now());
+        updates.put("updatedAt", Timestamp.now());
+        if (!updateIfLeaseHeld(jobRef, updates)) {
+            logger.warn("Newsletter job {}: lease taken over by another instance before completion.", job.getId());
+            return;
+        }
+        logger.info("Newsletter job {} completed: {} sent, {} failed.", job.getId(), sent, failed);
+    }
+
+    private Future<List<Map<String, Object>>> submitChunk(NewsletterJob job, List<String> recipients) {
+        return deliveryExecutor.submit(() -> sendWithRetry(job.getSubject(), job.getHtmlContent(), recipients));
+    }
+
+    /**
+     * Invia un blocco di destinatari ritentando gli errori temporanei (429, 5xx, errori di rete).
+     * Se Brevo rifiuta la richiesta (4xx non ritentabile, tipicamente un indirizzo non valido) il blocco viene diviso
+     * a metà e ogni metà inviata di nuovo, così falliscono solo i destinatari effettivamente rifiutati.
+     * @return i destinatari non raggiunti con il relativo errore (lista vuota se l'invio è riuscito).
+     */
+    List<Map<String, Object>> sendWithRetry(String subject, String htmlContent, List<String> recipients) {
+        String error;
+        boolean rejected = false;
+        for (int attempt = 1; ; attempt++) {
+            rateLimiter.acquire();
+            boolean retryable;
+            try {
+                emailService.sendBatch(subject, htmlContent, recipients);
+                return List.of();
+            } catch (HttpClientErrorException e) {
+                int status = e.getStatusCode().value();
+                retryable = status == 429;
+                // 401/403 riguardano la chiave API, non i destinatari: dividere il blocco non servirebbe
+                rejected = !retryable && status != 401 && status != 403;
+                error = e.getStatusCode() + " " + e.getResponseBodyAsString();
+            } catch (HttpServerErrorException | ResourceAccessException e) {
+                retryable = true;
+                error = e.getMessage();
+            } catch (RestClientException e) {
+                retryable = false;
+                error = e.getMessage();
+            }
+
+            if (!retryable || attempt >= maxAttempts) {
+                break;
+            }
+            long backoff = initialBackoffMs * (1L << (attempt - 1));
+            try {
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                error = "Interrupted";
+                break;
+            }
+        }
+
+        if (rejected && recipients.size() > 1) {
+            int middle = recipients.size() / 2;
+            List<Map<String, Object>> failures = new ArrayList<>(sendWithRetry(subject, htmlContent, recipients.subList(0, middle)));
+            failures.addAll(sendWithRetry(subject, htmlContent, recipients.subList(middle, recipients.size())));
+            return failures;
+        }
+
+        logger.warn("Newsletter batch of {} recipients failed: {}", recipients.size(), error);
+        List<Map<String, Object>> failures = new ArrayList<>();
+        for (String email : recipients) {
+            failures.add(Map.of("email", email, "error", error != null ? error : "Unknown error", "failedAt", Timestamp.now()));
+        }
+        return failures;
+    }
+
+    /**
+     * Salva cursore, contatori e destinatari falliti della pagina appena elaborata, rinnovando il lease.
+     * @return false se il lease non appartiene più a questa istanza: in quel caso non viene scritto nulla.
+     */
+    private boolean saveProgress(DocumentReference jobRef, String cursor, long sent, long failed, List<Map<String, Object>> failures) throws ExecutionException, InterruptedException {
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("cursor", cursor);
+        updates.put("sentCount", sent);
+        updates.put("failedCount", failed);
+        updates.put("leaseExpiresAt", leaseDeadline());
+        updates.put("updatedAt", Timestamp.now());
+        if (!updateIfLeaseHeld(jobRef, updates)) {
+            return false;
+        }
+
+        CollectionReference failuresCollection = jobRef.collection("failures");
+        WriteBatch batch = firestore.batch();
+        int writes = 0;
+        for (Map<String, Object> failure : failures) {
+            batch.set(failuresCollection.document(), failure);
+            if (++writes == FirestoreBulkLoader.MAX_BATCH_WRITES) {
+                batch.commit().get();
+                batch = firestore.batch();
+                writes = 0;
+            }
+        }
+        if (writes > 0) {
+            batch.commit().get();
+        }
+        return true;
+    }
+
+    /**
+     * Applica {@code updates} al job solo se il lease è ancora di questa istanza, verificandolo nella stessa transazione.
+     * @return false se un'altra istanza ha preso in carico il job (o il job non esiste più).
+     */
+    private boolean updateIfLeaseHeld(DocumentReference jobRef, Map<String, Object> updates) throws ExecutionException, InterruptedException {
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(jobRef).get();
+            if (!snapshot.exists() || !instanceId.equals(snapshot.getString("leaseOwner"))) {
+                return false;
+            }
+            transaction.update(jobRef, updates);
+            return true;
+        }).get();
+    }
+
+    private void markFailed(String jobId, String error) {
+        try {
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("status", NewsletterJob.STATUS_FAILED);
+            updates.put("lastError", error);
+            updates.put("leaseOwner", null);
+            updates.put("leaseExpiresAt", null);
+            updates.put("updatedAt", Timestamp.now());
+            // Se il job è passato a un'altra istanza non va segnato come fallito: lo sta già riprendendo lei
+            if (!updateIfLeaseHeld(jobsCollection.document(jobId), updates)) {
+                logger.warn("Newsletter job {} is owned by another instance. Not marking it as failed.", jobId);
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Could not mark newsletter job {} as failed: {}", jobId, e.getMessage());
+        }
+    }
+
+    private Timestamp leaseDeadline() {
+        return Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + leaseMs) * 1000);
+    }
+
+    private boolean isLeaseExpired(Timestamp leaseExpiresAt) {
+        return leaseExpiresAt == null || leaseExpiresAt.compareTo(Timestamp.now()) < 0;
+    }
+}
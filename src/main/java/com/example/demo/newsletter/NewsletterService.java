@@ -1,19 +1,39 @@
 package com.example.demo.newsletter;
 
 import com.example.demo.order.BrevoEmailService;
-import com.google.api.core.ApiFuture;
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.Precondition;
+import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
 import com.google.cloud.firestore.WriteBatch;
+import io.grpc.Status;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
 @Service
@@ -23,6 +43,12 @@ public class NewsletterService {
     private final BrevoEmailService emailService;
     private static final Logger logger = LoggerFactory.getLogger(NewsletterService.class);
 
+    private static final String SUBSCRIPTIONS_COLLECTION = "newsletterSubscriptions";
+    // Documento counters/newsletterSubscriptions, aggiornato nello stesso batch di iscrizioni e cancellazioni
+    private static final String COUNTER_FIELD = "count";
+    // Ogni documento migrato richiede al massimo due scritture: una pagina resta sotto FirestoreBulkLoader.MAX_BATCH_WRITES
+    private static final int MIGRATION_PAGE_SIZE = 200;
+
     @Value("${brevo.sender.email}")
     private String senderEmail;
 
@@ -31,47 +57,70 @@ public class NewsletterService {
         this.emailService = emailService;
     }
 
+    /**
+     * Iscrive l'email alla newsletter. L'ID del documento è l'hash dell'email normalizzata, quindi la deduplicazione
+     * è un'unica create() atomica: se il documento esiste già la scrittura fallisce e nessuna query è necessaria,
+     * anche con due iscrizioni contemporanee dello stesso indirizzo.
+     * @return false se l'email era già iscritta.
+     */
     public boolean subscribe(NewsletterSubscriptionDTO subscriptionDTO) {
+        String email = subscriptionDTO.getEmail() != null ? subscriptionDTO.getEmail().trim() : null;
+        if (email == null || email.isEmpty()) {
+            throw new IllegalArgumentException("Email is required");
+        }
         try {
-            // Controlla se l'email è già presente nel database
-            ApiFuture<QuerySnapshot> future = firestore.collection("newsletterSubscriptions")
-                    .whereEqualTo("email", subscriptionDTO.getEmail())
-                    .limit(1) // Ottimizzazione: ci basta sapere se esiste almeno un record
-                    .get();
-
-            List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-
-            // Se l'email esiste già, restituisci false
-            if (!documents.isEmpty()) {
-                logger.info("L'email {} è già iscritta alla newsletter.", subscriptionDTO.getEmail()); // RIMOSSO
-                return false;
-            }
-
-            // Se l'email non esiste, procedi con l'iscrizione
-            // logger.info("Elaborazione nuova iscrizione per l'email: {}", subscriptionDTO.getEmail()); // RIMOSSO
             NewsletterSubscription subscription = new NewsletterSubscription();
-            subscription.setEmail(subscriptionDTO.getEmail());
+            subscription.setEmail(email);
             subscription.setSubscribedAt(ZonedDateTime.now());
-            subscription.setId(UUID.randomUUID().toString());
+            subscription.setId(subscriptionId(email));
 
-            firestore.collection("newsletterSubscriptions").document(subscription.getId()).set(subscription);
-            // logger.info("Iscrizione salvata su Firestore con ID: {}", subscription.getId()); // RIMOSSO
+            WriteBatch batch = firestore.batch();
+            batch.create(subscriptionRef(email), subscription);
+            batch.set(counterRef(), Map.of(COUNTER_FIELD, FieldValue.increment(1)), SetOptions.merge());
+            batch.commit().get();
             return true;
 
-        } catch (InterruptedException | ExecutionException e) {
-            logger.error("Errore durante la verifica dell'iscrizione esistente per {}: {}", subscriptionDTO.getEmail(), e.getMessage());
+        } catch (ExecutionException e) {
+            if (isStatus(e, Status.Code.ALREADY_EXISTS)) {
+                logger.info("L'email {} è già iscritta alla newsletter.", email);
+                return false;
+            }
+            logger.error("Errore durante l'iscrizione di {}: {}", email, e.getMessage());
+            throw new RuntimeException("Errore interno durante l'iscrizione", e);
+        } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Errore interno durante l'iscrizione", e);
         }
     }
 
+    /**
+     * Cancella l'iscrizione con un'unica delete per chiave. La precondizione exists fa fallire la delete
+     * se il documento non c'è, così il contatore viene decrementato solo per iscrizioni realmente rimosse.
+     */
     public void unsubscribeByEmail(String email) throws ExecutionException, InterruptedException {
         logger.info("Attempting to unsubscribe email: {}", email);
-        ApiFuture<QuerySnapshot> future = firestore.collection("newsletterSubscriptions")
-                .whereEqualTo("email", email)
-                .get();
+        if (email == null || email.isBlank()) {
+            return;
+        }
+        WriteBatch batch = firestore.batch();
+        batch.delete(subscriptionRef(email), Precondition.exists(true));
+        batch.set(counterRef(), Map.of(COUNTER_FIELD, FieldValue.increment(-1)), SetOptions.merge());
+        try {
+            batch.commit().get();
+            logger.info("Successfully unsubscribed email: {}", email);
+        } catch (ExecutionException e) {
+            if (!isStatus(e, Status.Code.NOT_FOUND)) {
+                throw e;
+            }
+            // Iscrizioni create prima delle chiavi deterministiche e non ancora migrate
+            unsubscribeLegacy(email);
+        }
+    }
 
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
+    private void unsubscribeLegacy(String email) throws ExecutionException, InterruptedException {
+        List<QueryDocumentSnapshot> documents = firestore.collection(SUBSCRIPTIONS_COLLECTION)
+                .whereEqualTo("email", email)
+                .get().get().getDocuments();
 
         if (documents.isEmpty()) {
             logger.warn("Email {} not found for unsubscription. No action taken.", email);
@@ -83,51 +132,156 @@ public class NewsletterService {
             batch.delete(document.getReference());
             logger.info("Scheduled for deletion: subscriber with email {} (Document ID: {})", email, document.getId());
         }
-
+        batch.set(counterRef(), Map.of(COUNTER_FIELD, FieldValue.increment(-documents.size())), SetOptions.merge());
         batch.commit().get();
         logger.info("Successfully unsubscribed email: {}", email);
     }
 
     /**
-     * Conta il numero totale di iscritti alla newsletter.
+     * Migrazione una tantum: sposta le iscrizioni con ID casuale sulla chiave deterministica,
+     * eliminando i duplicati della stessa email, e riallinea il contatore.
+     * @return il numero di documenti legacy migrati o rimossi.
+     */
+    public int migrateLegacySubscriptions() throws ExecutionException, InterruptedException {
+        CollectionReference subscriptions = firestore.collection(SUBSCRIPTIONS_COLLECTION);
+        Set<String> keptIds = new HashSet<>();
+        int migrated = 0;
+        String cursor = null;
+
+        while (true) {
+            Query query = subscriptions.orderBy(FieldPath.documentId()).limit(MIGRATION_PAGE_SIZE);
+            if (cursor != null) {
+                query = query.startAfter(cursor);
+            }
+            List<QueryDocumentSnapshot> page = query.get().get().getDocuments();
+            if (page.isEmpty()) {
+                break;
+            }
+            cursor = page.get(page.size() - 1).getId();
+
+            // Una sola lettura in blocco per sapere quali chiavi di destinazione esistono già
+            List<QueryDocumentSnapshot> legacy = new ArrayList<>();
+            Set<DocumentReference> targets = new LinkedHashSet<>();
+            for (QueryDocumentSnapshot doc : page) {
+                String email = doc.getString("email");
+                if (email == null || email.isBlank()) {
+                    continue;
+                }
+                if (doc.getId().equals(subscriptionId(email))) {
+                    keptIds.add(doc.getId());
+                } else {
+                    legacy.add(doc);
+                    targets.add(subscriptionRef(email));
+                }
+            }
+            if (!legacy.isEmpty()) {
+                for (DocumentSnapshot target : firestore.getAll(targets.toArray(new DocumentReference[0])).get()) {
+                    if (target.exists()) {
+                        keptIds.add(target.getId());
+                    }
+                }
+
+                WriteBatch batch = firestore.batch();
+                for (QueryDocumentSnapshot doc : legacy) {
+                    String email = doc.getString("email").trim();
+                    String targetId = subscriptionId(email);
+                    if (keptIds.add(targetId)) {
+                        Map<String, Object> data = new HashMap<>(doc.getData());
+                        data.put("email", email);
+                        data.put("id", targetId);
+                        batch.set(subscriptions.document(targetId), data);
+                    }
+                    batch.delete(doc.getReference());
+                    migrated++;
+                }
+                batch.commit().get();
+            }
+
+            if (page.size() < MIGRATION_PAGE_SIZE) {
+                break;
+            }
+        }
+
+        reconcileSubscriberCount();
+        logger.info("Migrated {} legacy newsletter subscriptions to deterministic IDs.", migrated);
+        return migrated;
+    }
+
+    /**
+     * ID deterministico dell'iscrizione: SHA-256 (esadecimale) dell'email senza spazi e in minuscolo.
+     */
+    public static String subscriptionId(String email) {
+        String normalized = email.trim().toLowerCase(Locale.ROOT);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private DocumentReference subscriptionRef(String email) {
+        return firestore.collection(SUBSCRIPTIONS_COLLECTION).document(subscriptionId(email));
+    }
+
+    private static boolean isStatus(ExecutionException e, Status.Code code) {
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof FirestoreException firestoreException
+                    && firestoreException.getStatus() != null
+                    && firestoreException.getStatus().getCode() == code) {
+                return true;
+            }
+            if (cause instanceof ApiException apiException
+                    && apiException.getStatusCode().getCode().name().equals(code.name())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Conta il numero totale di iscritti alla newsletter leggendo il documento contatore (una sola lettura).
+     * Se il contatore non esiste ancora viene inizializzato con una query di aggregazione count().
      * @return Il numero di iscritti.
      * @throws ExecutionException Se si verifica un errore durante il recupero dei dati da Firestore.
      * @throws InterruptedException Se il thread viene interrotto durante l'attesa dei dati.
      */
     public int countSubscribers() throws ExecutionException, InterruptedException {
-        ApiFuture<QuerySnapshot> future = firestore.collection("newsletterSubscriptions").get();
-        // Nota: per collezioni molto grandi, questo approccio potrebbe essere inefficiente.
-        // Firestore non ha un'operazione "count" diretta e a basso costo.
-        // Per ora, dato il contesto, questo metodo è sufficiente ed efficace.
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-        logger.info("Found {} total subscribers.", documents.size());
-        return documents.size();
+        DocumentSnapshot counter = counterRef().get().get();
+        Long count = counter.exists() ? counter.getLong(COUNTER_FIELD) : null;
+        if (count == null) {
+            count = reconcileSubscriberCount();
+        }
+        return (int) Math.max(0, count);
     }
 
-    public void sendNewsletter(String subject, String message) throws ExecutionException, InterruptedException {
-        logger.info("Starting newsletter send job...");
-        ApiFuture<QuerySnapshot> future = firestore.collection("newsletterSubscriptions").get();
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-
-        if (documents.isEmpty()) {
-            logger.warn("No subscribers found. Newsletter job finished.");
-            return;
+    /**
+     * Riallinea il contatore al numero reale di documenti, correggendo eventuali derive
+     * (scritture fallite a metà, modifiche manuali dalla console, iscrizioni precedenti al contatore).
+     * @return il numero di iscritti contato.
+     */
+    public long reconcileSubscriberCount() throws ExecutionException, InterruptedException {
+        long actual = firestore.collection(SUBSCRIPTIONS_COLLECTION).count().get().get().getCount();
+        DocumentSnapshot counter = counterRef().get().get();
+        Long stored = counter.exists() ? counter.getLong(COUNTER_FIELD) : null;
+        if (stored == null || stored != actual) {
+            counterRef().set(Map.of(COUNTER_FIELD, actual)).get();
+            logger.info("Newsletter subscriber counter reconciled: {} -> {}", stored, actual);
         }
+        return actual;
+    }
 
-        logger.info("Found {} subscribers. Proceeding to send emails.", documents.size());
-
-        for (QueryDocumentSnapshot document : documents) {
-            String email = document.getString("email");
-            if (email != null && !email.isEmpty()) {
-                try {
-                    emailService.sendEmail(email, subject, message);
-                    logger.info("Successfully sent newsletter to: {}", email);
-                } catch (Exception e) {
-                    logger.error("Failed to send newsletter to: {}. Error: {}", email, e.getMessage());
-                }
-            }
+    @Scheduled(cron = "${newsletter.counter.reconcile-cron:0 30 3 * * *}")
+    public void scheduledCounterReconciliation() {
+        try {
+            reconcileSubscriberCount();
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Newsletter subscriber counter reconciliation failed: {}", e.getMessage());
         }
-        logger.info("Newsletter send job finished.");
+    }
+
+    private DocumentReference counterRef() {
+        return firestore.collection("counters").document(SUBSCRIPTIONS_COLLECTION);
     }
 
     public void sendTestNewsletter(String subject, String message) {
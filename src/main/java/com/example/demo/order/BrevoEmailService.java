@@ -2,8 +2,6 @@ package com.example.demo.order;
 
 import com.example.demo.settings.Setting;
 import com.example.demo.settings.SettingService;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import java.io.IOException;
 import java.time.Year;
 import java.util.ArrayList;
@@ -13,14 +11,15 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.multipart.MultipartFile;
 import org.thymeleaf.TemplateEngine;
@@ -30,9 +29,9 @@ import org.thymeleaf.context.Context;
 public class BrevoEmailService {
 
   private final RestTemplate restTemplate;
-  private final ObjectMapper objectMapper;
   private final TemplateEngine templateEngine;
   private final SettingService settingService;
+  private final OrderLines orderLines;
 
   @Value("${brevo.api.key}")
   private String apiKey;
@@ -47,15 +46,15 @@ public class BrevoEmailService {
   private String frontendUrl;
 
   public BrevoEmailService(
-    RestTemplate restTemplate,
-    ObjectMapper objectMapper,
+    @Qualifier("brevoRestTemplate") RestTemplate restTemplate,
     TemplateEngine templateEngine,
-    SettingService settingService
+    SettingService settingService,
+    OrderLines orderLines
   ) {
     this.restTemplate = restTemplate;
-    this.objectMapper = objectMapper;
     this.templateEngine = templateEngine;
     this.settingService = settingService;
+    this.orderLines = orderLines;
   }
 
   public void sendInvoiceEmail(String toEmail, String orderId, MultipartFile attachment) {
@@ -77,49 +76,71 @@ public class BrevoEmailService {
     Order shipment
   ) {
     try {
-      Setting settings = settingService.getSettings();
-      final Context ctx = new Context();
-
-      ctx.setVariable("customerName", parentOrder.getFullName());
-      ctx.setVariable("shipmentId", shipment.getId()); // ID della spedizione figlio
-      ctx.setVariable("currentYear", Year.now().getValue());
-      ctx.setVariable("termsUrl", frontendUrl + "/terms");
-      
-      // Aggiunta impostazioni corriere
-      ctx.setVariable("courierName", settings.getNomeCorriere());
-      ctx.setVariable("trackingLink", settings.getLinkTrackingPage());
-
-      Map<String, Object> shipmentForTemplate = new HashMap<>();
-      shipmentForTemplate.put("trackingNumber", shipment.getTrackingNumber());
-      try {
-        List<Map<String, Object>> items = objectMapper.readValue(
-          shipment.getItems(),
-          new TypeReference<>() {}
-        );
-        shipmentForTemplate.put("items", items);
-      } catch (IOException e) {
-        shipmentForTemplate.put("items", Collections.emptyList()); // Gestione errore
-      }
-      ctx.setVariable("shipment", shipmentForTemplate);
-
-      final String htmlContent = this.templateEngine.process(
-          "email/shipped-order-template",
-          ctx
-        );
-
-      // Oggetto email modificato per usare solo l'ID spedizione
-      String subject = "La tua spedizione #" + shipment.getId() + " è in viaggio!";
-      sendEmail(parentOrder.getEmail(), subject, htmlContent);
-
+      deliverShippedOrderEmail(parentOrder, shipment);
     } catch (ExecutionException | InterruptedException e) {
         System.err.println("Errore durante il recupero delle impostazioni per l'invio dell'email di spedizione: " + e.getMessage());
         Thread.currentThread().interrupt();
+    } catch (RestClientException e) {
+        System.err.println("Errore durante l'invio dell'email di spedizione a " + parentOrder.getEmail() + ": " + e.getMessage());
     }
   }
 
+  /**
+   * Come sendShippedOrderEmail, ma rilancia gli errori di invio: usato dalla coda email che gestisce i retry.
+   */
+  public void deliverShippedOrderEmail(
+    Order parentOrder,
+    Order shipment
+  ) throws ExecutionException, InterruptedException {
+    Setting settings = settingService.getSettings();
+    final Context ctx = new Context();
+
+    ctx.setVariable("customerName", parentOrder.getFullName());
+    ctx.setVariable("shipmentId", shipment.getId()); // ID della spedizione figlio
+    ctx.setVariable("currentYear", Year.now().getValue());
+    ctx.setVariable("termsUrl", frontendUrl + "/terms");
+    
+    // Aggiunta impostazioni corriere
+    ctx.setVariable("courierName", settings.getNomeCorriere());
+    ctx.setVariable("trackingLink", settings.getLinkTrackingPage());
+
+    Map<String, Object> shipmentForTemplate = new HashMap<>();
+    shipmentForTemplate.put("trackingNumber", shipment.getTrackingNumber());
+    shipmentForTemplate.put("items", orderLines.linesOf(shipment));
+    ctx.setVariable("shipment", shipmentForTemplate);
+
+    final String htmlContent = this.templateEngine.process(
+        "email/shipped-order-template",
+        ctx
+      );
+
+    // Oggetto email modificato per usare solo l'ID spedizione
+    String subject = "La tua spedizione #" + shipment.getId() + " è in viaggio!";
+    deliverEmail(parentOrder.getEmail(), subject, htmlContent, null);
+  }
+
   public void sendOrderConfirmationEmail(
     Order parentOrder,
     List<Order> childOrders
+  ) {
+    String subject = "Conferma d'ordine #" + parentOrder.getId();
+    sendEmail(parentOrder.getEmail(), subject, renderOrderConfirmation(parentOrder, childOrders));
+  }
+
+  /**
+   * Come sendOrderConfirmationEmail, ma rilancia gli errori di invio: usato dalla coda email che gestisce i retry.
+   */
+  public void deliverOrderConfirmationEmail(
+    Order parentOrder,
+    List<Order> childOrders
+  ) {
+    String subject = "Conferma d'ordine #" + parentOrder.getId();
+    deliverEmail(parentOrder.getEmail(), subject, renderOrderConfirmation(parentOrder, childOrders), null);
+  }
+
+  private String renderOrderConfirmation(
+    Order parentOrder,
+    List<Order> childOrders
   ) {
     final Context ctx = new Context();
 
@@ -158,28 +179,16 @@ public class BrevoEmailService {
     for (Order shipment : childOrders) {
       Map<String, Object> shipmentMap = new HashMap<>();
       shipmentMap.put("status", getHumanReadableStatus(shipment.getStatus()));
-      try {
-        List<Map<String, Object>> items = objectMapper.readValue(
-          shipment.getItems(),
-          new TypeReference<>() {}
-        );
-        shipmentMap.put("items", items);
-      } catch (IOException e) {
-        shipmentMap.put("items", Collections.emptyList()); // Gestione errore
-      }
+      shipmentMap.put("items", orderLines.linesOf(shipment));
       shipmentsForTemplate.add(shipmentMap);
     }
     ctx.setVariable("shipments", shipmentsForTemplate);
 
     // 3. Processa il template Thymeleaf per ottenere l'HTML
-    final String htmlContent = this.templateEngine.process(
+    return this.templateEngine.process(
         "email/order-confirmation-template",
         ctx
       );
-
-    // 4. Invia l'email con l'HTML generato
-    String subject = "Conferma d'ordine #" + parentOrder.getId();
-    sendEmail(parentOrder.getEmail(), subject, htmlContent);
   }
 
   public void sendEmail(String toEmail, String subject, String htmlContent) {
@@ -187,6 +196,30 @@ public class BrevoEmailService {
   }
 
   public void sendEmailWithAttachment(String toEmail, String subject, String htmlContent, MultipartFile attachment) {
+    try {
+      deliverEmail(toEmail, subject, htmlContent, attachment);
+      System.out.println("Email inviata a " + toEmail + ".");
+    } catch (HttpClientErrorException e) {
+      System.err.println(
+        "--- ERRORE HTTP INVIANDO EMAIL A " + toEmail + " ---"
+      );
+      System.err.println("Codice di stato: " + e.getStatusCode());
+      System.err.println("MOTIVO: " + e.getResponseBodyAsString());
+      System.err.println("-----------------------------------------");
+    } catch (Exception e) {
+      System.err.println(
+        "Errore generico durante l'invio dell'email a " +
+        toEmail +
+        ": " +
+        e.getMessage()
+      );
+    }
+  }
+
+  /**
+   * Invia un'email tramite Brevo. Gli errori HTTP e di rete vengono rilanciati come RestClientException.
+   */
+  public void deliverEmail(String toEmail, String subject, String htmlContent, MultipartFile attachment) {
     HttpHeaders headers = new HttpHeaders();
     headers.set("api-key", apiKey);
     headers.setContentType(MediaType.APPLICATION_JSON);
@@ -218,39 +251,36 @@ public class BrevoEmailService {
     }
 
     HttpEntity<Map<String, Object>> request = new HttpEntity<>(body, headers);
+    // RestTemplate rilancia già gli stati 4xx/5xx come eccezioni
+    restTemplate.exchange(apiUrl, HttpMethod.POST, request, String.class);
+  }
 
-    try {
-      ResponseEntity<String> response = restTemplate.exchange(
-        apiUrl,
-        HttpMethod.POST,
-        request,
-        String.class
-      );
-      if (response.getStatusCode().is2xxSuccessful()) {
-        System.out.println("Email inviata a " + toEmail + ".");
-      } else {
-        System.err.println(
-          "Errore durante l'invio dell'email a " +
-          toEmail +
-          ". Stato: " +
-          response.getStatusCode()
-        );
-      }
-    } catch (HttpClientErrorException e) {
-      System.err.println(
-        "--- ERRORE HTTP INVIANDO EMAIL A " + toEmail + " ---"
-      );
-      System.err.println("Codice di stato: " + e.getStatusCode());
-      System.err.println("MOTIVO: " + e.getResponseBodyAsString());
-      System.err.println("-----------------------------------------");
-    } catch (Exception e) {
-      System.err.println(
-        "Errore generico durante l'invio dell'email a " +
-        toEmail +
-        ": " +
-        e.getMessage()
-      );
+  /**
+   * Invia lo stesso contenuto a più destinatari con un'unica chiamata, tramite le messageVersions di Brevo:
+   * ogni destinatario riceve una versione separata e non vede gli indirizzi degli altri.
+   * A differenza di sendEmail gli errori vengono rilanciati, così il chiamante può decidere se ritentare.
+   */
+  public void sendBatch(String subject, String htmlContent, List<String> recipients) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.set("api-key", apiKey);
+    headers.setContentType(MediaType.APPLICATION_JSON);
+
+    Map<String, Object> sender = new HashMap<>();
+    sender.put("name", "Azienda Agricola");
+    sender.put("email", senderEmail);
+
+    List<Map<String, Object>> messageVersions = new ArrayList<>();
+    for (String recipient : recipients) {
+      messageVersions.add(Map.of("to", Collections.singletonList(Map.of("email", recipient))));
     }
+
+    Map<String, Object> body = new HashMap<>();
+    body.put("sender", sender);
+    body.put("subject", subject);
+    body.put("htmlContent", htmlContent);
+    body.put("messageVersions", messageVersions);
+
+    restTemplate.exchange(apiUrl, HttpMethod.POST, new HttpEntity<>(body, headers), String.class);
   }
 
   private String getHumanReadableStatus(String status) {
@@ -0,0 +1,290 @@
+package com.example.demo.order;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.UpdateBuilder;
+import com.google.cloud.firestore.WriteBatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coda (outbox) delle email transazionali.
+ * Le email vengono registrate in "email_outbox" nella stessa transazione/batch che scrive l'ordine, quindi non si
+ * perdono anche se l'istanza si ferma subito dopo; un pool di worker limitato le genera e le invia fuori dal
+ * percorso della richiesta. Gli errori vengono ritentati con backoff esponenziale e, esauriti i tentativi,
+ * l'email viene spostata in "email_outbox_dead" per un controllo manuale; i task inviati vengono eliminati.
+ * La consegna è "almeno una volta".
+ * Il polling richiede gli indici compositi su email_outbox (status, nextAttemptAt) e (status, leaseExpiresAt),
+ * definiti in firestore.indexes.json.
+ */
+@Component
+public class EmailOutbox {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmailOutbox.class);
+
+    private final Firestore firestore;
+    private final CollectionReference outboxCollection;
+    private final CollectionReference deadLetterCollection;
+    private final BrevoEmailService brevoEmailService;
+
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor executor;
+
+    @Value("${email.outbox.workers:2}")
+    private int workers;
+
+    @Value("${email.outbox.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${email.outbox.max-attempts:6}")
+    private int maxAttempts;
+
+    @Value("${email.outbox.initial-backoff-ms:30000}")
+    private long initialBackoffMs;
+
+    @Value("${email.outbox.lease-ms:120000}")
+    private long leaseMs;
+
+    @Value("${email.outbox.poll-batch-size:50}")
+    private int pollBatchSize;
+
+    public EmailOutbox(Firestore firestore, BrevoEmailService brevoEmailService) {
+        this.firestore = firestore;
+        this.outboxCollection = firestore.collection("email_outbox");
+        this.deadLetterCollection = firestore.collection("email_outbox_dead");
+        this.brevoEmailService = brevoEmailService;
+    }
+
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        // Coda limitata: se è piena il task resta in Firestore e lo raccoglie il prossimo giro di polling
+        executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "email-outbox-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void stop() {
+        executor.shutdown();
+    }
+
+    /**
+     * Genera l'ID di un nuovo task. Va generato fuori dalle transazioni, che possono essere rieseguite.
+     */
+    public String newTaskId() {
+        return outboxCollection.document().getId();
+    }
+
+    /**
+     * Aggiunge l'email a {@code writer} (transazione o batch), così viene salvata atomicamente con i dati a cui si riferisce.
+     * Dopo il commit va chiamato dispatch con lo stesso ID.
+     */
+    public void enqueue(UpdateBuilder<?> writer, String taskId, EmailTask task) {
+        writer.set(outboxCollection.document(taskId), task);
+    }
+
+    /**
+     * Avvia subito l'invio di un task già salvato, senza attendere il polling.
+     */
+    public void dispatch(String taskId) {
+        if (!inFlight.add(taskId)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    process(taskId);
+                } finally {
+                    inFlight.remove(taskId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(taskId);
+            logger.warn("Email outbox queue full, task {} will be picked up by the next poll.", taskId);
+        }
+    }
+
+    /**
+     * Rete di sicurezza: raccoglie i task scaduti per un nuovo tentativo e quelli rimasti a metà per un riavvio dell'istanza.
+     */
+    @Scheduled(fixedDelayString = "${email.outbox.poll-interval-ms:15000}", initialDelayString = "${email.outbox.poll-interval-ms:15000}")
+    public void pollPending() {
+        try {
+            Timestamp now = Timestamp.now();
+            List<QueryDocumentSnapshot> due = new ArrayList<>(outboxCollection
+                    .whereEqualTo("status", EmailTask.STATUS_PENDING)
+                    .whereLessThanOrEqualTo("nextAttemptAt", now)
+                    .limit(pollBatchSize)
+                    .get().get().getDocuments());
+            due.addAll(outboxCollection
+                    .whereEqualTo("status", EmailTask.STATUS_PROCESSING)
+                    .whereLessThanOrEqualTo("leaseExpiresAt", now)
+                    .limit(pollBatchSize)
+                    .get().get().getDocuments());
+            for (QueryDocumentSnapshot doc : due) {
+                dispatch(doc.getId());
+            }
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Email outbox poll failed: {}", e.getMessage());
+        }
+    }
+
+    private void process(String taskId) {
+        DocumentReference taskRef = outboxCollection.document(taskId);
+        EmailTask task;
+        try {
+            task = claim(taskRef);
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Could not claim email task {}: {}", taskId, e.getMessage());
+            return;
+        }
+        if (task == null) {
+            return;
+        }
+
+        try {
+            deliver(task);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            handleFailure(taskRef, task, e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+            return;
+        }
+
+        // Email inviata: il task non serve più e viene eliminato, così la collezione contiene solo il lavoro in sospeso
+        try {
+            taskRef.delete().get();
+        } catch (ExecutionException | InterruptedException e) {
+            // Scaduto il lease il task verrà ripreso e l'email inviata di nuovo (consegna "almeno una volta")
+            logger.error("Email task {} sent but could not be removed from the outbox: {}", taskId, e.getMessage());
+        }
+    }
+
+    /**
+     * Prende in carico il task se è in attesa e già dovuto, o se il lease di un altro worker è scaduto.
+     * @return il task con il contatore dei tentativi aggiornato, o null se non va elaborato ora.
+     */
+    private EmailTask claim(DocumentReference taskRef) throws ExecutionException, InterruptedException {
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot snapshot = transaction.get(taskRef).get();
+            if (!snapshot.exists()) {
+                return null;
+            }
+            EmailTask task = snapshot.toObject(EmailTask.class);
+            Timestamp now = Timestamp.now();
+            boolean due = EmailTask.STATUS_PENDING.equals(task.getStatus())
+                    && (task.getNextAttemptAt() == null || task.getNextAttemptAt().compareTo(now) <= 0);
+            boolean abandoned = EmailTask.STATUS_PROCESSING.equals(task.getStatus())
+                    && (task.getLeaseExpiresAt() == null || task.getLeaseExpiresAt().compareTo(now) <= 0);
+            if (!due && !abandoned) {
+                return null;
+            }
+            task.setAttempts(task.getAttempts() + 1);
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("status", EmailTask.STATUS_PROCESSING);
+            updates.put("attempts", task.getAttempts());
+            updates.put("leaseExpiresAt", afterMillis(leaseMs));
+            transaction.update(taskRef, updates);
+            return task;
+        }).get();
+    }
+
+    private void deliver(EmailTask task) throws ExecutionException, InterruptedException {
+        DocumentSnapshot parentDoc = firestore.collection("orders").document(task.getParentOrderId()).get().get();
+        if (!parentDoc.exists()) {
+            throw new IllegalStateException("Parent order " + task.getParentOrderId() + " not found");
+        }
+        Order parentOrder = parentDoc.toObject(Order.class);
+
+        switch (task.getType()) {
+            case EmailTask.TYPE_ORDER_CONFIRMATION -> {
+                List<Order> children = new ArrayList<>();
+                List<String> childIds = parentOrder.getChildOrderIds();
+                if (childIds != null && !childIds.isEmpty()) {
+                    DocumentReference[] refs = childIds.stream()
+                            .map(id -> firestore.collection("orders").document(id))
+                            .toArray(DocumentReference[]::new);
+                    for (DocumentSnapshot childDoc : firestore.getAll(refs).get()) {
+                        if (childDoc.exists()) {
+                            children.add(childDoc.toObject(Order.class));
+                        }
+                    }
+                }
+                brevoEmailService.deliverOrderConfirmationEmail(parentOrder, children);
+            }
+            case EmailTask.TYPE_SHIPMENT_SHIPPED -> {
+                DocumentSnapshot shipmentDoc = firestore.collection("orders").document(task.getShipmentId()).get().get();
+                if (!shipmentDoc.exists()) {
+                    throw new IllegalStateException("Shipment " + task.getShipmentId() + " not found");
+                }
+                brevoEmailService.deliverShippedOrderEmail(parentOrder, shipmentDoc.toObject(Order.class));
+            }
+            default -> throw new IllegalStateException("Unknown email task type: " + task.getType());
+        }
+    }
+
+    private void handleFailure(DocumentReference taskRef, EmailTask task, String error) {
+        try {
+            if (task.getAttempts() >= maxAttempts) {
+                Map<String, Object> dead = new HashMap<>();
+                dead.put("type", task.getType());
+                dead.put("parentOrderId", task.getParentOrderId());
+                dead.put("shipmentId", task.getShipmentId());
+                dead.put("attempts", task.getAttempts());
+                dead.put("lastError", error);
+                dead.put("createdAt", task.getCreatedAt());
+                dead.put("failedAt", Timestamp.now());
+
+                WriteBatch batch = firestore.batch();
+                batch.set(deadLetterCollection.document(taskRef.getId()), dead);
+                batch.delete(taskRef);
+                batch.commit().get();
+                logger.error("Email task {} ({}) moved to dead letter after {} attempts: {}", taskRef.getId(), task.getType(), task.getAttempts(), error);
+                return;
+            }
+
+            long backoff = initialBackoffMs * (1L << Math.min(task.getAttempts() - 1, 10));
+            Map<String, Object> updates = new HashMap<>();
+            updates.put("status", EmailTask.STATUS_PENDING);
+            updates.put("lastError", error);
+            updates.put("nextAttemptAt", afterMillis(backoff));
+            updates.put("leaseExpiresAt", null);
+            taskRef.update(updates).get();
+            logger.warn("Email task {} ({}) failed, attempt {}/{}: {}", taskRef.getId(), task.getType(), task.getAttempts(), maxAttempts, error);
+        } catch (ExecutionException | InterruptedException e) {
+            // Il lease scadrà e il task verrà ripreso dal polling
+            logger.error("Could not record failure of email task {}: {}", taskRef.getId(), e.getMessage());
+        }
+    }
+
+    private static Timestamp afterMillis(long millis) {
+        return Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + millis) * 1000);
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.demo.order;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.annotation.DocumentId;
+import lombok.Data;
+
+/**
+ * Email transazionale in attesa di invio, salvata nella collezione "email_outbox".
+ * Contiene solo i riferimenti agli ordini: il contenuto viene generato al momento dell'invio.
+ */
+@Data
+public class EmailTask {
+
+    public static final String TYPE_ORDER_CONFIRMATION = "ORDER_CONFIRMATION";
+    public static final String TYPE_SHIPMENT_SHIPPED = "SHIPMENT_SHIPPED";
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_PROCESSING = "PROCESSING";
+
+    @DocumentId
+    private String id;
+
+    private String type;
+    private String parentOrderId;
+    private String shipmentId;
+
+    private String status;
+    private int attempts;
+    private String lastError;
+    private Timestamp nextAttemptAt;
+    private Timestamp leaseExpiresAt;
+
+    private Timestamp createdAt;
+
+    public static EmailTask orderConfirmation(String parentOrderId) {
+        return pending(TYPE_ORDER_CONFIRMATION, parentOrderId, null);
+    }
+
+    public static EmailTask shipmentShipped(String parentOrderId, String shipmentId) {
+        return pending(TYPE_SHIPMENT_SHIPPED, parentOrderId, shipmentId);
+    }
+
+    private static EmailTask pending(String type, String parentOrderId, String shipmentId) {
+        EmailTask task = new EmailTask();
+        task.setType(type);
+        task.setParentOrderId(parentOrderId);
+        task.setShipmentId(shipmentId);
+        task.setStatus(STATUS_PENDING);
+        task.setCreatedAt(Timestamp.now());
+        task.setNextAttemptAt(Timestamp.now());
+        return task;
+    }
+}
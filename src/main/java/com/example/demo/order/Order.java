@@ -1,5 +1,6 @@
 package com.example.demo.order;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.annotation.DocumentId;
 import com.google.cloud.firestore.annotation.Exclude;
@@ -62,8 +63,21 @@ public class Order {
     private Double paymentFee; // Commissione del gateway (es. PayPal fee)
     private Double netRevenue; // Ricavo netto (subtotal - paymentFee)
 
+    // Fee Stripe (carta e Klarna): recuperate in background da StripeFeeReconciler dopo la creazione dell'ordine
+    public static final String FEE_STATUS_PENDING = "PENDING";
+    public static final String FEE_STATUS_RESOLVED = "RESOLVED";
+    public static final String FEE_STATUS_FAILED = "FAILED";
+
+    private String paymentIntentId; // PaymentIntent Stripe del pagamento
+    private String feeStatus; // PENDING finché paymentFee e netRevenue non sono disponibili
+    private Integer feeAttempts;
+    private Timestamp feeNextAttemptAt;
+
     // -- Dati della Spedizione (solo per CHILD) --
-    private String items; // JSON degli articoli in questa spedizione
+    private String items; // Formato legacy: JSON degli articoli (ordini precedenti a "lines"); nelle API resta valorizzato
+
+    @JsonIgnore
+    private List<OrderLine> lines; // Articoli di questa spedizione come array nativo (vedi OrderLines)
     private Double originalSubtotal; // Valore dei soli articoli in questa spedizione
     private String trackingNumber;
 
@@ -1,11 +1,10 @@
 package com.example.demo.order;
 
+import com.example.demo.firestore.CursorPaginator;
 import com.example.demo.order.dto.OrderCustomerUpdateDTO;
 import com.example.demo.order.dto.ShipmentStatusUpdateDTO;
 import com.example.demo.product.InsufficientStockException;
-import com.example.demo.product.ProductService;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.demo.product.StockReservationService;
 import com.stripe.exception.StripeException;
 import com.stripe.model.PaymentIntent;
 import com.stripe.param.PaymentIntentCreateParams;
@@ -27,17 +26,20 @@ public class OrderController {
   private static final Logger logger = LoggerFactory.getLogger(OrderController.class);
 
   private final OrderService orderService;
-  private final ProductService productService;
-  private final ObjectMapper objectMapper;
+  private final PricingEngine pricingEngine;
+  private final StockReservationService stockReservationService;
+  private final CursorPaginator cursorPaginator;
 
   public OrderController(
     OrderService orderService,
-    ProductService productService,
-    ObjectMapper objectMapper
+    PricingEngine pricingEngine,
+    StockReservationService stockReservationService,
+    CursorPaginator cursorPaginator
   ) {
     this.orderService = orderService;
-    this.productService = productService;
-    this.objectMapper = objectMapper;
+    this.pricingEngine = pricingEngine;
+    this.stockReservationService = stockReservationService;
+    this.cursorPaginator = cursorPaginator;
   }
 
   @GetMapping("/admin/orders/search")
@@ -59,14 +61,12 @@ public class OrderController {
     @RequestBody OrderDTO orderDTO
   ) {
     try {
-      List<Map<String, Object>> items = objectMapper.readValue(
-        orderDTO.getItems(),
-        new TypeReference<List<Map<String, Object>>>() {}
-      );
-      productService.verifyStockAvailability(items);
+      // Una sola lettura dei prodotti per stock e totale
+      PricedCart cart = pricingEngine.price(orderDTO);
+      cart.assertStockAvailable();
 
       // Calcolo sicuro del totale lato server
-      double serverTotal = orderService.calculateOrderTotal(orderDTO);
+      double serverTotal = cart.getTotalValue();
       double clientTotal = orderDTO.getSubtotal();
 
       // Confronto con tolleranza per errori in virgola mobile
@@ -103,6 +103,14 @@ public class OrderController {
 
       PaymentIntent paymentIntent = PaymentIntent.create(createParams);
 
+      // Blocca lo stock fino alla creazione dell'ordine (o alla scadenza della prenotazione)
+      try {
+        stockReservationService.hold(paymentIntent.getId(), cart.getRequestedQuantities());
+      } catch (InsufficientStockException e) {
+        paymentIntent.cancel();
+        throw e;
+      }
+
       Map<String, String> response = new HashMap<>();
       response.put("status", paymentIntent.getStatus());
       response.put("clientSecret", paymentIntent.getClientSecret());
@@ -142,6 +150,11 @@ public class OrderController {
       Map<String, String> response = new HashMap<>();
       response.put("status", "order_created_successfully");
       return ResponseEntity.ok(response);
+    } catch (InsufficientStockException e) {
+      // Un altro acquisto ha esaurito la disponibilità: nessuna scrittura è stata effettuata
+      Map<String, String> response = new HashMap<>();
+      response.put("error", e.getMessage());
+      return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
     } catch (Exception e) {
       Map<String, String> response = new HashMap<>();
       response.put(
@@ -155,12 +168,19 @@ public class OrderController {
   }
 
   @GetMapping("/orders")
-  public ResponseEntity<List<Order>> getOrders(
-    @RequestParam(required = false) Integer status
+  public ResponseEntity<?> getOrders(
+    @RequestParam(required = false) Integer status,
+    @RequestParam(required = false) String pageToken,
+    @RequestParam(required = false) Integer pageSize
   ) {
     try {
-      List<Order> parentOrders = orderService.getParentOrders(status);
-      return ResponseEntity.ok(parentOrders);
+      if (cursorPaginator.isLegacyRequest(pageToken, pageSize)) {
+        List<Order> parentOrders = orderService.getParentOrders(status);
+        return ResponseEntity.ok(parentOrders);
+      }
+      return ResponseEntity.ok(orderService.getParentOrdersPage(pageToken, pageSize));
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
     } catch (Exception e) {
       return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
     }
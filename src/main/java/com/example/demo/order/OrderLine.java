@@ -0,0 +1,57 @@
+package com.example.demo.order;
+
+import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.cloud.firestore.annotation.Exclude;
+import lombok.Data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Singolo articolo di una spedizione (ordine CHILD).
+ * Viene salvato su Firestore come elemento dell'array nativo "lines"; gli ordini più vecchi
+ * hanno invece gli articoli in formato JSON nel campo "items" (vedi {@link OrderLines}).
+ * È una classe e non un record perché il mapper di Firestore richiede costruttore vuoto e setter.
+ */
+@Data
+public class OrderLine {
+    private String id; // ID del prodotto
+    private String name;
+    private int quantity;
+    private Double price; // Prezzo di listino al momento dell'ordine
+    private Double discountPrice;
+    private Integer vatRate;
+
+    // Eventuali altri campi inviati dal carrello, conservati così come sono
+    private Map<String, Object> extra = new LinkedHashMap<>();
+
+    @JsonAnyGetter
+    public Map<String, Object> getExtra() {
+        return extra;
+    }
+
+    @JsonAnySetter
+    public void putExtra(String key, Object value) {
+        extra.put(key, value);
+    }
+
+    /**
+     * Prezzo effettivamente applicato: quello scontato se presente, altrimenti il listino.
+     */
+    @Exclude
+    @JsonIgnore
+    public double getFinalPrice() {
+        if (discountPrice != null) {
+            return discountPrice;
+        }
+        return price != null ? price : 0.0;
+    }
+
+    @Exclude
+    @JsonIgnore
+    public int getVatRateOrDefault() {
+        return vatRate != null ? vatRate : 22;
+    }
+}
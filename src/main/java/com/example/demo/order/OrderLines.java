@@ -0,0 +1,111 @@
+package com.example.demo.order;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteResult;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Accesso tipizzato agli articoli di un ordine CHILD.
+ * Gli ordini nuovi salvano gli articoli nel campo nativo "lines"; per quelli vecchi il JSON "items"
+ * viene letto una sola volta e, se abilitato, riscritto come "lines" (migrazione pigra).
+ * Il campo "items" resta nelle risposte API per compatibilità con il frontend.
+ */
+@Component
+public class OrderLines {
+
+    private static final Logger logger = LoggerFactory.getLogger(OrderLines.class);
+
+    private final ObjectMapper objectMapper;
+    private final Firestore firestore;
+
+    @Value("${order.lines.migrate-on-read:true}")
+    private boolean migrateOnRead;
+
+    public OrderLines(ObjectMapper objectMapper, Firestore firestore) {
+        this.objectMapper = objectMapper;
+        this.firestore = firestore;
+    }
+
+    /**
+     * Articoli dell'ordine; per gli ordini in formato legacy il JSON viene letto una volta e memorizzato sull'oggetto.
+     */
+    public List<OrderLine> linesOf(Order child) {
+        if (child.getLines() != null) {
+            return child.getLines();
+        }
+        if (child.getItems() == null || child.getItems().isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            List<OrderLine> lines = objectMapper.readValue(child.getItems(), new TypeReference<List<OrderLine>>() {});
+            child.setLines(lines);
+            return lines;
+        } catch (IOException e) {
+            logger.error("Impossibile leggere gli articoli dell'ordine figlio {}: {}", child.getId(), e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Converte le righe del carrello (già arricchite con il prezzo di listino) nel formato tipizzato.
+     */
+    public List<OrderLine> fromCartItems(List<Map<String, Object>> items) {
+        return items.stream()
+                .map(item -> objectMapper.convertValue(item, OrderLine.class))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Se l'ordine è ancora in formato legacy, salva in background gli articoli come array nativo "lines".
+     * Il vecchio campo "items" viene lasciato com'è, così le istanze non ancora aggiornate continuano a leggerlo.
+     */
+    public void migrateIfLegacy(Order child) {
+        if (!migrateOnRead || child.getId() == null || child.getLines() != null || child.getItems() == null) {
+            return;
+        }
+        List<OrderLine> lines = linesOf(child);
+        if (lines.isEmpty()) {
+            return;
+        }
+        ApiFutures.addCallback(firestore.collection("orders").document(child.getId()).update("lines", lines), new ApiFutureCallback<WriteResult>() {
+            @Override
+            public void onFailure(Throwable t) {
+                logger.warn("Migrazione degli articoli non riuscita per l'ordine {}: {}", child.getId(), t.getMessage());
+            }
+
+            @Override
+            public void onSuccess(WriteResult result) {
+                logger.debug("Ordine {} migrato al formato lines.", child.getId());
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Valorizza il campo JSON "items" a partire da "lines", per le risposte API che lo espongono ancora.
+     */
+    public Order withItemsJson(Order child) {
+        if (child.getItems() == null && child.getLines() != null) {
+            try {
+                child.setItems(objectMapper.writeValueAsString(child.getLines()));
+            } catch (JsonProcessingException e) {
+                logger.error("Impossibile serializzare gli articoli dell'ordine figlio {}: {}", child.getId(), e.getMessage());
+            }
+        }
+        return child;
+    }
+}
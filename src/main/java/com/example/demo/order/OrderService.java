@@ -1,34 +1,26 @@
 package com.example.demo.order;
+import com.example.demo.admin.DashboardStatsRecorder;
 import com.example.demo.admin.dto.ShipmentListDTO;
 import com.example.demo.coupon.Coupon;
 import com.example.demo.coupon.CouponService;
-import com.example.demo.coupon.DiscountType;
+import com.example.demo.firestore.CursorPaginator;
+import com.example.demo.firestore.FirestoreBulkLoader;
+import com.example.demo.firestore.Page;
 import com.example.demo.order.dto.OrderCustomerUpdateDTO;
 import com.example.demo.order.dto.ShipmentStatusUpdateDTO;
+import com.example.demo.paypal.PayPalCaptureResult;
 import com.example.demo.paypal.PayPalService;
+import com.example.demo.product.InsufficientStockException;
 import com.example.demo.product.Product;
 import com.example.demo.product.ProductService;
-import com.example.demo.settings.Setting;
-import com.example.demo.settings.SettingService;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.demo.product.StockReservationService;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.*;
-import com.stripe.model.BalanceTransaction;
-import com.stripe.model.Charge;
-import com.stripe.model.PaymentIntent;
 import java.io.IOException;
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.time.LocalDate;
-import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import org.springframework.stereotype.Service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,27 +32,31 @@ public class OrderService {
     private static final Logger logger = LoggerFactory.getLogger(OrderService.class);
 
     private final Firestore firestore;
-    private final ObjectMapper objectMapper;
-    private final BrevoEmailService brevoEmailService;
+    private final EmailOutbox emailOutbox;
     private final ProductService productService;
-    private final SettingService settingService;
-    private final CouponService couponService;
     private final PayPalService payPalService;
+    private final PricingEngine pricingEngine;
+    private final StockReservationService stockReservationService;
+    private final DashboardStatsRecorder dashboardStatsRecorder;
+    private final FirestoreBulkLoader bulkLoader;
+    private final OrderLines orderLines;
+    private final CouponService couponService;
+    private final CursorPaginator cursorPaginator;
 
     private static final String STATUS_CONSEGNATO = "2";
-    private static final Set<String> EU_COUNTRY_CODES = Set.of(
-        "AT", "BE", "BG", "CY", "HR", "DK", "EE", "FI", "FR", "DE", "GR", "IE", 
-        "LV", "LT", "LU", "MT", "NL", "PL", "PT", "CZ", "RO", "SK", "SI", "ES", "SE", "HU"
-    );
 
-    public OrderService(Firestore firestore, BrevoEmailService brevoEmailService, ProductService productService, SettingService settingService, CouponService couponService, PayPalService payPalService) {
+    public OrderService(Firestore firestore, EmailOutbox emailOutbox, ProductService productService, PayPalService payPalService, PricingEngine pricingEngine, StockReservationService stockReservationService, DashboardStatsRecorder dashboardStatsRecorder, FirestoreBulkLoader bulkLoader, OrderLines orderLines, CouponService couponService, CursorPaginator cursorPaginator) {
         this.firestore = firestore;
-        this.objectMapper = new ObjectMapper();
-        this.brevoEmailService = brevoEmailService;
+        this.emailOutbox = emailOutbox;
         this.productService = productService;
-        this.settingService = settingService;
-        this.couponService = couponService;
         this.payPalService = payPalService;
+        this.pricingEngine = pricingEngine;
+        this.stockReservationService = stockReservationService;
+        this.dashboardStatsRecorder = dashboardStatsRecorder;
+        this.bulkLoader = bulkLoader;
+        this.orderLines = orderLines;
+        this.couponService = couponService;
+        this.cursorPaginator = cursorPaginator;
     }
 
     public boolean hasOrdersInPeriod(int month, int year) throws ExecutionException, InterruptedException {
@@ -152,157 +148,24 @@ public class OrderService {
         return new ArrayList<>(foundOrders);
     }
 
-    public double calculateOrderTotal(OrderDTO orderDTO) throws ExecutionException, InterruptedException, IOException {
-        List<Map<String, Object>> itemsFromDTO = objectMapper.readValue(orderDTO.getItems(), new TypeReference<>() {});
-        BigDecimal merchandiseTotal = BigDecimal.ZERO;
-
-        for (Map<String, Object> item : itemsFromDTO) {
-            String productId = (String) item.get("id");
-            int quantity = ((Number) item.get("quantity")).intValue();
-
-            DocumentSnapshot productDoc = firestore.collection("products").document(productId).get().get();
-            if (!productDoc.exists()) {
-                 throw new IllegalArgumentException("Product with ID " + productId + " not found.");
-            }
-            Product product = productDoc.toObject(Product.class);
-
-            double priceToUse = (product.getDiscountPrice() != null && product.getDiscountPrice() > 0)
-                ? product.getDiscountPrice()
-                : product.getPrice();
-
-            merchandiseTotal = merchandiseTotal.add(BigDecimal.valueOf(priceToUse).multiply(BigDecimal.valueOf(quantity)));
-        }
-
-        BigDecimal discountAmount = BigDecimal.ZERO;
-        if (orderDTO.getCouponCode() != null && !orderDTO.getCouponCode().isEmpty()) {
-            // 1. Gestione Coupon Volatile Newsletter
-            if ("NEWSLETTER10_SESSION".equals(orderDTO.getCouponCode())) {
-                BigDecimal percentage = new BigDecimal("10").divide(new BigDecimal("100"), 2, RoundingMode.HALF_UP);
-                discountAmount = merchandiseTotal.multiply(percentage);
-                // logger.info("Applicato sconto newsletter volatile del 10%: {}", discountAmount); // RIMOSSO
-            } 
-            // 2. Gestione Coupon Standard da DB
-            else {
-                Optional<Coupon> couponOpt = couponService.verifyCoupon(orderDTO.getCouponCode());
-                if (couponOpt.isPresent()) {
-                    Coupon coupon = couponOpt.get();
-                    if (coupon.getDiscountType() == DiscountType.PERCENTAGE) {
-                        BigDecimal percentage = coupon.getDiscountValue().divide(new BigDecimal("100"), 2, RoundingMode.HALF_UP);
-                        discountAmount = merchandiseTotal.multiply(percentage);
-                    } else { // FIXED_AMOUNT
-                        discountAmount = coupon.getDiscountValue();
-                    }
-                }
-            }
-
-            // Cap dello sconto: non può superare il totale merce
-            if (discountAmount.compareTo(merchandiseTotal) > 0) {
-                discountAmount = merchandiseTotal;
-            }
-        }
-        
-        BigDecimal merchandiseAfterDiscount = merchandiseTotal.subtract(discountAmount);
-
-        Setting settings = settingService.getSettings();
-        BigDecimal shippingCost = BigDecimal.ZERO;
-        String country = orderDTO.getCountry();
-        String normalizedCountry = (country != null) ? country.trim().toUpperCase() : "";
-
-        BigDecimal freeShippingThreshold;
-        BigDecimal standardShippingCost;
-        BigDecimal splitShippingCost;
-
-        if ("IT".equalsIgnoreCase(normalizedCountry)) {
-            freeShippingThreshold = Optional.ofNullable(settings.getFreeShippingThreshold()).orElse(BigDecimal.ZERO);
-            standardShippingCost = Optional.ofNullable(settings.getStandardShippingCost()).orElse(BigDecimal.ZERO);
-            splitShippingCost = Optional.ofNullable(settings.getSplitShippingCost()).orElse(BigDecimal.ZERO);
-        } else if (EU_COUNTRY_CODES.contains(normalizedCountry)) {
-            freeShippingThreshold = Optional.ofNullable(settings.getFreeShippingThreshold_UE()).orElse(BigDecimal.ZERO);
-            standardShippingCost = Optional.ofNullable(settings.getStandardShippingCost_UE()).orElse(BigDecimal.ZERO);
-            splitShippingCost = Optional.ofNullable(settings.getSplitShippingCost_UE()).orElse(BigDecimal.ZERO);
-        } else {
-            freeShippingThreshold = Optional.ofNullable(settings.getFreeShippingThreshold()).orElse(BigDecimal.ZERO);
-            standardShippingCost = Optional.ofNullable(settings.getStandardShippingCost()).orElse(BigDecimal.ZERO);
-            splitShippingCost = Optional.ofNullable(settings.getSplitShippingCost()).orElse(BigDecimal.ZERO);
-        }
-
-        if (freeShippingThreshold.compareTo(BigDecimal.ZERO) <= 0 || merchandiseAfterDiscount.compareTo(freeShippingThreshold) < 0) {
-            shippingCost = standardShippingCost;
-            if ("split".equalsIgnoreCase(orderDTO.getShipmentPreference())) {
-                 shippingCost = shippingCost.add(splitShippingCost);
-            }
-        }
-
-        BigDecimal finalTotal = merchandiseAfterDiscount.add(shippingCost);
-        
-        return finalTotal.doubleValue();
-    }
-
     public void createOrder(OrderDTO orderDTO) throws IOException, ExecutionException, InterruptedException {
-        // --- RECUPERO FEE STRIPE ---
-        if ("card".equals(orderDTO.getPaymentMethod()) && orderDTO.getPaymentToken() != null) {
-            try {
-                String paymentIntentId = orderDTO.getPaymentToken();
-                if (paymentIntentId.contains("_secret_")) {
-                    paymentIntentId = paymentIntentId.split("_secret_")[0];
-                }
-                
-                List<String> expandList = new ArrayList<>();
-                expandList.add("latest_charge.balance_transaction");
-
-                Map<String, Object> params = new HashMap<>();
-                params.put("expand", expandList);
-
-                PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId, params, null);
-                
-                // Estrazione Fee e Net
-                Charge latestCharge = (Charge) paymentIntent.getLatestChargeObject();
-                if (latestCharge != null) {
-                    BalanceTransaction balanceTransaction = latestCharge.getBalanceTransactionObject();
-                    if (balanceTransaction != null) {
-                        long feeCents = balanceTransaction.getFee();
-                        long netCents = balanceTransaction.getNet();
-                        
-                        double feeEuro = feeCents / 100.0;
-                        double netEuro = netCents / 100.0;
-                        
-                        // Imposta i valori nel DTO per essere salvati
-                        orderDTO.setPaymentFee(feeEuro);
-                        orderDTO.setNetRevenue(netEuro);
-                    }
-                }
-
-            } catch (Exception e) {
-                logger.error("Errore durante il recupero delle fee da Stripe: {}", e.getMessage());
-            }
-        }
-        // -------------------------------------
+        createOrder(orderDTO, resolveReservationId(orderDTO));
+    }
 
+    /**
+     * Crea l'ordine confermando la prenotazione di stock {@code reservationId} (se presente e non ancora scaduta).
+     */
+    public void createOrder(OrderDTO orderDTO, String reservationId) throws IOException, ExecutionException, InterruptedException {
         // --- RECUPERO FEE PAYPAL ---
         if ("paypal".equals(orderDTO.getPaymentMethod()) && orderDTO.getPaymentToken() != null) {
             try {
                 String orderId = orderDTO.getPaymentToken();
 
-                JsonNode orderDetails = payPalService.getOrderDetails(orderId);
-
-                // Naviga il JSON per trovare le fee
-                // Struttura tipica: purchase_units[0].payments.captures[0].seller_receivable_breakdown
-                JsonNode purchaseUnits = orderDetails.get("purchase_units");
-                if (purchaseUnits != null && purchaseUnits.isArray() && purchaseUnits.size() > 0) {
-                    JsonNode payments = purchaseUnits.get(0).get("payments");
-                    if (payments != null) {
-                        JsonNode captures = payments.get("captures");
-                        if (captures != null && captures.isArray() && captures.size() > 0) {
-                            JsonNode breakdown = captures.get(0).get("seller_receivable_breakdown");
-                            if (breakdown != null) {
-                                double fee = breakdown.get("paypal_fee").get("value").asDouble();
-                                double net = breakdown.get("net_amount").get("value").asDouble();
-
-                                orderDTO.setPaymentFee(fee);
-                                orderDTO.setNetRevenue(net);
-                            }
-                        }
-                    }
+                // Di norma l'esito è quello appena ricevuto dalla cattura: nessuna chiamata aggiuntiva a PayPal
+                PayPalCaptureResult capture = payPalService.takeCaptureResult(orderId);
+                if (capture.hasFees()) {
+                    orderDTO.setPaymentFee(capture.paypalFee());
+                    orderDTO.setNetRevenue(capture.netAmount());
                 }
 
             } catch (Exception e) {
@@ -311,78 +174,154 @@ public class OrderService {
         }
         // -------------------------------------
 
-        List<Map<String, Object>> allItems = objectMapper.readValue(orderDTO.getItems(), new TypeReference<>() {});
-
-        List<Map<String, Object>> regularItems = new ArrayList<>();
-        List<Map<String, Object>> preOrderItems = new ArrayList<>();
-
-        for (Map<String, Object> item : allItems) {
-            String productId = (String) item.get("id");
-            DocumentSnapshot productDoc = firestore.collection("products").document(productId).get().get();
-            if (productDoc.exists()) {
-                item.put("price", productDoc.getDouble("price"));
-                String preSaleDateStr = productDoc.getString("preSaleDate");
-                
-                boolean isPreOrder = false;
-                if (preSaleDateStr != null && !preSaleDateStr.isEmpty()) {
-                    try {
-                        // Assumiamo che la data sia nel formato YYYY-MM-DD
-                        LocalDate preSaleDate = LocalDate.parse(preSaleDateStr); 
-                        if (preSaleDate.isAfter(LocalDate.now())) {
-                            isPreOrder = true;
+        List<Map<String, Object>> allItems = pricingEngine.parseItems(orderDTO.getItems());
+        List<String> cartProductIds = pricingEngine.collectProductIds(allItems);
+        DocumentReference reservationRef = reservationId != null ? stockReservationService.reservationRef(reservationId) : null;
+
+        Order parentOrder = createParentOrder(orderDTO);
+        // Solo un coupon valido (quello che PricingEngine ha applicato) conta un utilizzo, nella stessa transazione dell'ordine
+        String couponId = couponService.verifyCoupon(orderDTO.getCouponCode()).map(Coupon::getId).orElse(null);
+        DocumentReference parentRef = firestore.collection("orders").document(parentOrder.getId());
+        String confirmationTaskId = emailOutbox.newTaskId();
+
+        // Ordine (padre + figli) e scalo dello stock in un'unica transazione:
+        // se anche una sola riga andrebbe sotto zero, non viene scritto nulla.
+        List<Order> childOrders;
+        try {
+            childOrders = firestore.runTransaction(transaction -> {
+                // In una transazione tutte le letture devono precedere le scritture
+                DocumentSnapshot reservationDoc = reservationRef != null ? transaction.get(reservationRef).get() : null;
+                Map<String, Integer> held = stockReservationService.heldQuantities(reservationDoc);
+
+                // Leggiamo anche i prodotti prenotati ma non più nel carrello, per liberarne la quota
+                Set<String> productIds = new LinkedHashSet<>(cartProductIds);
+                productIds.addAll(held.keySet());
+                DocumentReference[] productRefs = productIds.stream()
+                        .map(id -> firestore.collection("products").document(id))
+                        .toArray(DocumentReference[]::new);
+
+                Map<String, Product> products = new HashMap<>();
+                if (productRefs.length > 0) {
+                    for (DocumentSnapshot productDoc : transaction.getAll(productRefs).get()) {
+                        if (productDoc.exists()) {
+                            Product product = productDoc.toObject(Product.class);
+                            product.setId(productDoc.getId());
+                            products.put(productDoc.getId(), product);
                         }
-                    } catch (DateTimeParseException e) {
-                        System.err.println("Data pre-ordine non valida per il prodotto " + productId + ": " + preSaleDateStr);
                     }
                 }
 
-                if (isPreOrder) {
-                    preOrderItems.add(item);
-                } else {
-                    regularItems.add(item);
-                }
-            } else {
-                throw new IllegalArgumentException("Prodotto con ID " + productId + " non trovato.");
-            }
-        }
-
-        boolean shouldSplit = "split".equalsIgnoreCase(orderDTO.getShipmentPreference()) && !regularItems.isEmpty() && !preOrderItems.isEmpty();
+                List<PricedCart.Line> lines = pricingEngine.resolveLines(allItems, products);
+                List<PricedCart.Line> regularLines = lines.stream().filter(line -> !line.isPreOrder()).collect(Collectors.toList());
+                List<PricedCart.Line> preOrderLines = lines.stream().filter(PricedCart.Line::isPreOrder).collect(Collectors.toList());
 
-        WriteBatch batch = firestore.batch();
+                boolean shouldSplit = "split".equalsIgnoreCase(orderDTO.getShipmentPreference()) && !regularLines.isEmpty() && !preOrderLines.isEmpty();
 
-        Order parentOrder = createParentOrder(orderDTO);
-        List<String> childOrderIds = new ArrayList<>();
+                // Lo stock viene scalato solo per gli articoli che partono subito quando l'ordine è diviso
+                Map<String, Integer> stockToDecrease = new LinkedHashMap<>();
+                for (PricedCart.Line line : shouldSplit ? regularLines : lines) {
+                    if (line.getQuantity() > 0) {
+                        stockToDecrease.merge(line.getProductId(), line.getQuantity(), Integer::sum);
+                    }
+                }
 
-        if (shouldSplit) {
-            String regularChildId = "child_" + UUID.randomUUID().toString();
-            childOrderIds.add(regularChildId);
-            createChildOrder(batch, parentOrder.getId(), regularChildId, regularItems, 0);
+                // La quota già prenotata da questo pagamento conta come disponibile
+                List<String> stockProblems = productService.collectStockProblems(stockToDecrease, products, held);
+                if (!stockProblems.isEmpty()) {
+                    throw new InsufficientStockException(stockProblems);
+                }
 
-            String preOrderChildId = "child_" + UUID.randomUUID().toString();
-            childOrderIds.add(preOrderChildId);
-            createChildOrder(batch, parentOrder.getId(), preOrderChildId, preOrderItems, 3);
+                List<Order> children = new ArrayList<>();
+                if (shouldSplit) {
+                    children.add(buildChildOrder(parentOrder.getId(), toItems(regularLines), 0));
+                    children.add(buildChildOrder(parentOrder.getId(), toItems(preOrderLines), 3));
+                } else {
+                    // Se ci sono articoli in pre-ordine (e non abbiamo splittato), l'intero ordine è in pre-ordine (stato 3).
+                    // Altrimenti è in preparazione (stato 0).
+                    int status = !preOrderLines.isEmpty() ? 3 : 0;
+                    children.add(buildChildOrder(parentOrder.getId(), toItems(lines), status));
+                }
+                children.removeIf(Objects::isNull);
 
-        } else {
-            String childId = "child_" + UUID.randomUUID().toString();
-            childOrderIds.add(childId);
-            // Se ci sono articoli in pre-ordine (e non abbiamo splittato), l'intero ordine è in pre-ordine (stato 3).
-            // Altrimenti è in preparazione (stato 0).
-            int status = !preOrderItems.isEmpty() ? 3 : 0;
-            createChildOrder(batch, parentOrder.getId(), childId, allItems, status);
+                List<String> childOrderIds = new ArrayList<>();
+                for (Order child : children) {
+                    childOrderIds.add(child.getId());
+                    transaction.set(firestore.collection("orders").document(child.getId()), child);
+                }
+                parentOrder.setChildOrderIds(childOrderIds);
+                transaction.set(parentRef, parentOrder);
+                dashboardStatsRecorder.recordOrder(transaction, parentOrder, children);
+                if (couponId != null) {
+                    couponService.recordUsage(transaction, couponId);
+                }
+                // L'email di conferma viene salvata insieme all'ordine e inviata fuori dal percorso del checkout
+                emailOutbox.enqueue(transaction, confirmationTaskId, EmailTask.orderConfirmation(parentOrder.getId()));
+
+                Set<String> touchedProducts = new LinkedHashSet<>(stockToDecrease.keySet());
+                touchedProducts.addAll(held.keySet());
+                for (String productId : touchedProducts) {
+                    Product product = products.get(productId);
+                    if (product == null) {
+                        continue;
+                    }
+                    Map<String, Object> updates = new HashMap<>();
+                    if (stockToDecrease.containsKey(productId)) {
+                        updates.put("stock", product.getStock() - stockToDecrease.get(productId));
+                    }
+                    if (held.containsKey(productId)) {
+                        updates.put("reservedStock", Math.max(0, product.getReservedStock() - held.get(productId)));
+                    }
+                    transaction.update(firestore.collection("products").document(productId), updates);
+                }
+                // Prenotazione confermata: la quota passa dallo stock prenotato a quello venduto
+                if (reservationDoc != null && reservationDoc.exists()) {
+                    transaction.delete(reservationRef);
+                }
+                return children;
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InsufficientStockException) {
+                throw (InsufficientStockException) e.getCause();
+            }
+            throw e;
         }
 
-        parentOrder.setChildOrderIds(childOrderIds);
-        DocumentReference parentRef = firestore.collection("orders").document(parentOrder.getId());
-        batch.set(parentRef, parentOrder);
-
-        batch.commit().get();
+        emailOutbox.dispatch(confirmationTaskId);
+    }
 
-        brevoEmailService.sendOrderConfirmationEmail(parentOrder, getChildOrders(parentOrder.getId()));
+    /**
+     * Ricava l'ID della prenotazione di stock dal token di pagamento: PaymentIntent per le carte, ordine per PayPal.
+     */
+    private String resolveReservationId(OrderDTO orderDTO) {
+        String token = orderDTO.getPaymentToken();
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        if ("card".equals(orderDTO.getPaymentMethod())) {
+            return token.contains("_secret_") ? token.split("_secret_")[0] : token;
+        }
+        if ("paypal".equals(orderDTO.getPaymentMethod())) {
+            return token;
+        }
+        return null;
+    }
 
-        List<Map<String, Object>> itemsToUpdateStock = shouldSplit ? regularItems : allItems;
-        for (Map<String, Object> item : itemsToUpdateStock) {
-            productService.decreaseStock((String) item.get("id"), ((Number) item.get("quantity")).intValue());
+    /**
+     * @return l'ID del PaymentIntent Stripe per i pagamenti con carta o Klarna, altrimenti null.
+     */
+    private static String stripePaymentIntentId(OrderDTO orderDTO) {
+        String token = orderDTO.getPaymentToken();
+        if (token == null || token.isEmpty()) {
+            return null;
         }
+        if ("card".equals(orderDTO.getPaymentMethod()) || "klarna".equals(orderDTO.getPaymentMethod())) {
+            return token.contains("_secret_") ? token.split("_secret_")[0] : token;
+        }
+        return null;
+    }
+
+    private List<Map<String, Object>> toItems(List<PricedCart.Line> lines) {
+        return lines.stream().map(PricedCart.Line::getItem).collect(Collectors.toList());
     }
 
     private Order createParentOrder(OrderDTO dto) {
@@ -446,35 +385,43 @@ public class OrderService {
             }
         }
 
+        // Le fee Stripe spesso non sono ancora disponibili al checkout: l'ordine viene salvato subito e
+        // StripeFeeReconciler le completa in background
+        String paymentIntentId = stripePaymentIntentId(dto);
+        if (paymentIntentId != null) {
+            parent.setPaymentIntentId(paymentIntentId);
+            if (parent.getPaymentFee() == null) {
+                parent.setFeeStatus(Order.FEE_STATUS_PENDING);
+                parent.setFeeAttempts(0);
+                parent.setFeeNextAttemptAt(parent.getCreatedAt());
+            }
+        }
+
         parent.setShipmentPreference(dto.getShipmentPreference());
         parent.setStatus("PROCESSING");
 
         return parent;
     }
 
-    private void createChildOrder(WriteBatch batch, String parentId, String childId, List<Map<String, Object>> items, int status) {
-        if (items.isEmpty()) return;
+    private Order buildChildOrder(String parentId, List<Map<String, Object>> items, int status) {
+        if (items.isEmpty()) return null;
 
         Order child = new Order();
-        child.setId(childId);
+        child.setId("child_" + UUID.randomUUID());
         child.setType("CHILD");
         child.setParentOrderId(parentId);
         child.setCreatedAt(Timestamp.now());
         child.setStatus(String.valueOf(status));
 
-        try {
-            child.setItems(objectMapper.writeValueAsString(items));
-        } catch (JsonProcessingException e) {
-            throw new RuntimeException("Errore serializzazione articoli per ordine figlio", e);
-        }
+        // Articoli salvati come array nativo: nessun JSON da rileggere a ogni accesso
+        List<OrderLine> lines = orderLines.fromCartItems(items);
+        child.setLines(lines);
 
-        double originalSubtotal = items.stream()
-                .mapToDouble(item -> ((Number) item.get("price")).doubleValue() * ((Number) item.get("quantity")).intValue())
+        double originalSubtotal = lines.stream()
+                .mapToDouble(line -> (line.getPrice() != null ? line.getPrice() : 0.0) * line.getQuantity())
                 .sum();
         child.setOriginalSubtotal(originalSubtotal);
-
-        DocumentReference childRef = firestore.collection("orders").document(childId);
-        batch.set(childRef, child);
+        return child;
     }
 
     public List<Order> getParentOrders(Integer status) throws ExecutionException, InterruptedException {
@@ -492,6 +439,16 @@ public class OrderService {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Ordini PADRE dal più recente, una pagina alla volta. Richiede l'indice composito type ASC + createdAt DESC.
+     */
+    public Page<Order> getParentOrdersPage(String pageToken, Integer pageSize) throws ExecutionException, InterruptedException {
+        Query query = firestore.collection("orders")
+                .whereEqualTo("type", "PARENT")
+                .orderBy("createdAt", Query.Direction.DESCENDING);
+        return cursorPaginator.fetchPage(query, "orders", pageToken, pageSize, doc -> doc.toObject(Order.class));
+    }
+
     public Order getParentOrderWithChildren(String parentId) throws ExecutionException, InterruptedException {
         DocumentSnapshot parentDoc = firestore.collection("orders").document(parentId).get().get();
         if (!parentDoc.exists() || !"PARENT".equals(parentDoc.getString("type"))) {
@@ -501,11 +458,16 @@ public class OrderService {
     }
 
     public List<Order> getChildOrders(String parentId) throws ExecutionException, InterruptedException {
-        return firestore.collection("orders")
+        List<Order> children = firestore.collection("orders")
                 .whereEqualTo("parentOrderId", parentId)
                 .get().get().getDocuments().stream()
                 .map(doc -> doc.toObject(Order.class))
                 .collect(Collectors.toList());
+        for (Order child : children) {
+            orderLines.migrateIfLegacy(child);
+            orderLines.withItemsJson(child);
+        }
+        return children;
     }
 
     public Order updateOrderCustomerDetails(String orderId, OrderCustomerUpdateDTO dto) throws ExecutionException, InterruptedException {
@@ -563,21 +525,28 @@ public class OrderService {
             updates.put("trackingNumber", dto.getTrackingNumber().trim());
         }
 
+        boolean isShippedNow = dto.getStatus() != null && dto.getStatus() == 1;
+        String trackingNumber = updates.containsKey("trackingNumber") ? (String) updates.get("trackingNumber") : shipmentDoc.getString("trackingNumber");
+        boolean hasTracking = trackingNumber != null && !trackingNumber.isEmpty();
+
+        // Aggiornamento della spedizione ed email di notifica nello stesso batch
+        String shippedTaskId = null;
         if (!updates.isEmpty()) {
-            shipmentRef.update(updates).get();
+            WriteBatch batch = firestore.batch();
+            batch.update(shipmentRef, updates);
+            if (isShippedNow && hasTracking) {
+                shippedTaskId = emailOutbox.newTaskId();
+                emailOutbox.enqueue(batch, shippedTaskId, EmailTask.shipmentShipped(shipmentDoc.getString("parentOrderId"), shipmentId));
+            }
+            batch.commit().get();
+        }
+        if (shippedTaskId != null) {
+            emailOutbox.dispatch(shippedTaskId);
         }
 
         Order updatedShipment = shipmentRef.get().get().toObject(Order.class);
 
-        boolean isShippedNow = dto.getStatus() != null && dto.getStatus() == 1;
-        boolean hasTracking = updatedShipment.getTrackingNumber() != null && !updatedShipment.getTrackingNumber().isEmpty();
-
-        if (isShippedNow && hasTracking) {
-            Order parentOrder = getParentOrderWithChildren(updatedShipment.getParentOrderId());
-            brevoEmailService.sendShippedOrderEmail(parentOrder, updatedShipment);
-        }
-
-        return updatedShipment;
+        return orderLines.withItemsJson(updatedShipment);
     }
 
     public void deleteOrder(String parentId) throws ExecutionException, InterruptedException {
@@ -590,13 +559,23 @@ public class OrderService {
 
         WriteBatch batch = firestore.batch();
 
-        if (childIds != null) {
-            for (String childId : childIds) {
-                batch.delete(firestore.collection("orders").document(childId));
+        List<Order> children = new ArrayList<>();
+        if (childIds != null && !childIds.isEmpty()) {
+            DocumentReference[] childRefs = childIds.stream()
+                    .map(childId -> firestore.collection("orders").document(childId))
+                    .toArray(DocumentReference[]::new);
+            for (DocumentSnapshot childDoc : firestore.getAll(childRefs).get()) {
+                if (childDoc.exists()) {
+                    children.add(childDoc.toObject(Order.class));
+                }
+                batch.delete(childDoc.getReference());
             }
         }
         batch.delete(firestore.collection("orders").document(parentId));
 
+        // I contatori della dashboard vengono scalati insieme all'eliminazione
+        dashboardStatsRecorder.removeOrder(batch, parentDoc.toObject(Order.class), children);
+
         batch.commit().get();
     }
 
@@ -618,16 +597,11 @@ public class OrderService {
                 .distinct()
                 .collect(Collectors.toList());
 
+        // Le spedizioni aperte sono quelle lette più spesso: qui conviene migrarle al formato nativo
+        childOrders.forEach(orderLines::migrateIfLegacy);
+
         List<String> productIds = childOrders.stream()
-                .flatMap(child -> {
-                    try {
-                        List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<List<Map<String, Object>>>() {});
-                        return items.stream().map(item -> (String) item.get("id"));
-                    } catch (IOException e) {
-                        System.err.println("Failed to parse items from child order: " + child.getId());
-                        return Stream.<String>empty();
-                    }
-                })
+                .flatMap(child -> orderLines.linesOf(child).stream().map(OrderLine::getId))
                 .filter(Objects::nonNull)
                 .distinct()
                 .collect(Collectors.toList());
@@ -672,23 +646,17 @@ public class OrderService {
         dto.setTotalPackages(totalPackages);
         dto.setPackageIndex(packageIndex > 0 ? packageIndex : 1);
 
-        try {
-            List<Map<String, Object>> itemsFromChild = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-            List<ShipmentListDTO.ShipmentItem> shipmentItems = itemsFromChild.stream()
-                    .map(itemMap -> createShipmentItem(itemMap, productsMap))
-                    .filter(Objects::nonNull)
-                    .collect(Collectors.toList());
-            dto.setItems(shipmentItems);
-        } catch (IOException e) {
-            System.err.println("Failed to parse items for DTO creation for child: " + child.getId());
-            dto.setItems(Collections.emptyList());
-        }
+        List<ShipmentListDTO.ShipmentItem> shipmentItems = orderLines.linesOf(child).stream()
+                .map(line -> createShipmentItem(line, productsMap))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        dto.setItems(shipmentItems);
 
         return dto;
     }
 
-    private ShipmentListDTO.ShipmentItem createShipmentItem(Map<String, Object> itemMap, Map<String, Product> productsMap) {
-        String productId = (String) itemMap.get("id");
+    private ShipmentListDTO.ShipmentItem createShipmentItem(OrderLine line, Map<String, Product> productsMap) {
+        String productId = line.getId();
         Product product = productsMap.get(productId);
 
         if (product == null) {
@@ -699,7 +667,7 @@ public class OrderService {
         ShipmentListDTO.ShipmentItem shipmentItem = new ShipmentListDTO.ShipmentItem();
         shipmentItem.setId(product.getId());
         shipmentItem.setName(product.getName());
-        shipmentItem.setQuantity(((Number) itemMap.get("quantity")).intValue());
+        shipmentItem.setQuantity(line.getQuantity());
         shipmentItem.setPrice(product.getPrice());
         shipmentItem.setDiscountPrice(product.getDiscountPrice());
         shipmentItem.setPreSaleDate(product.getPreSaleDate());
@@ -707,50 +675,11 @@ public class OrderService {
     }
 
     private <T> Map<String, T> fetchInPartitions(List<String> ids, String collection, Class<T> clazz) throws ExecutionException, InterruptedException {
-        if (ids == null || ids.isEmpty()) {
-            return Collections.emptyMap();
-        }
-        
-        Map<String, T> results = new HashMap<>();
-        List<List<String>> partitions = partitionList(ids, 30);
-        
-        for (List<String> partition : partitions) {
-            if (partition.isEmpty()) continue;
-            firestore.collection(collection).whereIn(FieldPath.documentId(), partition).get().get()
-                .forEach(doc -> results.put(doc.getId(), doc.toObject(clazz)));
-        }
-        return results;
+        return bulkLoader.loadByIds(collection, ids, clazz);
     }
 
     private Map<String, Product> fetchProductsInPartitions(List<String> ids) throws ExecutionException, InterruptedException {
-        if (ids == null || ids.isEmpty()) {
-            return Collections.emptyMap();
-        }
-        
-        Map<String, Product> results = new HashMap<>();
-        List<List<String>> partitions = partitionList(ids, 30);
-        
-        for (List<String> partition : partitions) {
-            if (partition.isEmpty()) continue;
-            firestore.collection("products").whereIn(FieldPath.documentId(), partition).get().get()
-                .forEach(doc -> {
-                    Product p = doc.toObject(Product.class);
-                    p.setId(doc.getId());
-                    results.put(doc.getId(), p);
-                });
-        }
-        return results;
-    }
-
-    private <T> List<List<T>> partitionList(List<T> list, int size) {
-        if (list == null || list.isEmpty()) {
-            return Collections.emptyList();
-        }
-        List<List<T>> partitions = new ArrayList<>();
-        for (int i = 0; i < list.size(); i += size) {
-            partitions.add(new ArrayList<>(list.subList(i, Math.min(i + size, list.size()))));
-        }
-        return partitions;
+        return productService.getCachedProductsByIds(ids);
     }
 
     public List<Order> getOrdersForExport(int month, int year) throws ExecutionException, InterruptedException, IOException {
@@ -775,14 +704,16 @@ public class OrderService {
             return Collections.emptyList();
         }
 
+        attachChildOrders(parentOrders);
+
+        // Gli articoli vengono letti una sola volta e condivisi con ExcelService tramite Order.lines
         Set<String> allProductIds = new HashSet<>();
         for (Order parent : parentOrders) {
-            List<Order> children = getChildOrders(parent.getId());
-            parent.setChildOrders(children); // Important: attach children to parent
-            for (Order child : children) {
-                List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-                for (Map<String, Object> item : items) {
-                    allProductIds.add((String) item.get("id"));
+            for (Order child : parent.getChildOrders()) {
+                for (OrderLine line : orderLines.linesOf(child)) {
+                    if (line.getId() != null) {
+                        allProductIds.add(line.getId());
+                    }
                 }
             }
         }
@@ -790,23 +721,58 @@ public class OrderService {
         Map<String, Product> productsMap = fetchProductsInPartitions(new ArrayList<>(allProductIds));
 
         for (Order parent : parentOrders) {
-            if (parent.getChildOrders() == null) continue;
             for (Order child : parent.getChildOrders()) {
-                List<Map<String, Object>> items = objectMapper.readValue(child.getItems(), new TypeReference<>() {});
-                for (Map<String, Object> item : items) {
-                    Product product = productsMap.get((String) item.get("id"));
+                for (OrderLine line : orderLines.linesOf(child)) {
+                    Product product = productsMap.get(line.getId());
                     if (product != null) {
-                        item.put("name", product.getName());
-                        item.put("vatRate", product.getVatRate()); // AGGIUNTO
+                        line.setName(product.getName());
+                        line.setVatRate(product.getVatRate());
                     }
                 }
-                child.setItems(objectMapper.writeValueAsString(items));
             }
         }
 
         return parentOrders;
     }
 
+    /**
+     * Carica in blocco gli ordini figli di tutti i padri indicati, invece di una query per ordine.
+     * Gli ID dei figli sono già salvati sul padre (childOrderIds): li leggiamo a blocchi, in parallelo.
+     * Solo per eventuali padri senza childOrderIds si ricorre a query whereIn su parentOrderId.
+     */
+    private void attachChildOrders(List<Order> parentOrders) throws ExecutionException, InterruptedException {
+        List<String> childIds = new ArrayList<>();
+        List<String> parentsWithoutIds = new ArrayList<>();
+        for (Order parent : parentOrders) {
+            if (parent.getChildOrderIds() == null || parent.getChildOrderIds().isEmpty()) {
+                parentsWithoutIds.add(parent.getId());
+            } else {
+                childIds.addAll(parent.getChildOrderIds());
+            }
+        }
+
+        Map<String, Order> childrenById = bulkLoader.loadByIds("orders", childIds, Order.class);
+        Map<String, List<Order>> childrenByParent = new HashMap<>();
+        for (QueryDocumentSnapshot doc : bulkLoader.queryWhereIn(firestore.collection("orders"), "parentOrderId", parentsWithoutIds)) {
+            Order child = doc.toObject(Order.class);
+            childrenByParent.computeIfAbsent(child.getParentOrderId(), k -> new ArrayList<>()).add(child);
+        }
+
+        for (Order parent : parentOrders) {
+            List<Order> children;
+            if (parent.getChildOrderIds() != null && !parent.getChildOrderIds().isEmpty()) {
+                // Manteniamo l'ordine delle spedizioni salvato sul padre
+                children = parent.getChildOrderIds().stream()
+                        .map(childrenById::get)
+                        .filter(Objects::nonNull)
+                        .collect(Collectors.toList());
+            } else {
+                children = childrenByParent.getOrDefault(parent.getId(), new ArrayList<>());
+            }
+            parent.setChildOrders(children);
+        }
+    }
+
     public void updateInvoiceRequestStatus(String orderId, int status) throws ExecutionException, InterruptedException {
         DocumentReference orderRef = firestore.collection("orders").document(orderId);
         orderRef.update("richiestaFattura", status).get();
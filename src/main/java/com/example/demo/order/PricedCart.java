@@ -0,0 +1,94 @@
+package com.example.demo.order;
+
+import com.example.demo.product.InsufficientStockException;
+import com.example.demo.product.Product;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Risultato del calcolo prezzi di un carrello, prodotto una sola volta da {@link PricingEngine}
+ * e condiviso da tutti i passaggi del checkout (verifica totale, stock, creazione ordine).
+ */
+@Getter
+public class PricedCart {
+
+    private final List<Line> lines;
+    private final List<String> stockProblems;
+    private final BigDecimal merchandiseTotal;
+    private final BigDecimal discount;
+    private final BigDecimal shippingCost;
+    private final BigDecimal total;
+
+    public PricedCart(List<Line> lines, List<String> stockProblems, BigDecimal merchandiseTotal, BigDecimal discount, BigDecimal shippingCost, BigDecimal total) {
+        this.lines = List.copyOf(lines);
+        this.stockProblems = List.copyOf(stockProblems);
+        this.merchandiseTotal = merchandiseTotal;
+        this.discount = discount;
+        this.shippingCost = shippingCost;
+        this.total = total;
+    }
+
+    public double getTotalValue() {
+        return total.doubleValue();
+    }
+
+    public boolean isStockAvailable() {
+        return stockProblems.isEmpty();
+    }
+
+    public void assertStockAvailable() throws InsufficientStockException {
+        if (!stockProblems.isEmpty()) {
+            throw new InsufficientStockException(stockProblems);
+        }
+    }
+
+    /**
+     * Quantità richieste per prodotto (righe duplicate sommate), usate per prenotare lo stock.
+     */
+    public Map<String, Integer> getRequestedQuantities() {
+        Map<String, Integer> requested = new LinkedHashMap<>();
+        for (Line line : lines) {
+            if (line.getQuantity() > 0) {
+                requested.merge(line.getProductId(), line.getQuantity(), Integer::sum);
+            }
+        }
+        return requested;
+    }
+
+    public List<Line> getRegularLines() {
+        return lines.stream().filter(line -> !line.isPreOrder()).collect(Collectors.toList());
+    }
+
+    public List<Line> getPreOrderLines() {
+        return lines.stream().filter(Line::isPreOrder).collect(Collectors.toList());
+    }
+
+    /**
+     * Singola riga del carrello con il prodotto già risolto.
+     */
+    @Getter
+    public static class Line {
+        private final Map<String, Object> item; // Riga originale del carrello, arricchita con il prezzo di listino
+        private final Product product;
+        private final int quantity;
+        private final double unitPrice; // Prezzo applicato (scontato se presente)
+        private final boolean preOrder;
+
+        public Line(Map<String, Object> item, Product product, int quantity, double unitPrice, boolean preOrder) {
+            this.item = item;
+            this.product = product;
+            this.quantity = quantity;
+            this.unitPrice = unitPrice;
+            this.preOrder = preOrder;
+        }
+
+        public String getProductId() {
+            return product.getId();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.demo.order;
+
+import com.example.demo.coupon.Coupon;
+import com.example.demo.coupon.CouponService;
+import com.example.demo.coupon.DiscountType;
+import com.example.demo.product.Product;
+import com.example.demo.product.ProductService;
+import com.example.demo.settings.Setting;
+import com.example.demo.settings.SettingService;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Calcola in un'unica passata prezzi, classificazione pre-ordine, disponibilità, sconto coupon e spedizione di un carrello.
+ * I prodotti vengono letti con una sola chiamata batch, così un checkout non rilegge lo stesso prodotto più volte.
+ */
+@Service
+public class PricingEngine {
+
+    private static final Logger logger = LoggerFactory.getLogger(PricingEngine.class);
+
+    private static final String NEWSLETTER_SESSION_COUPON = "NEWSLETTER10_SESSION";
+    private static final Set<String> EU_COUNTRY_CODES = Set.of(
+        "AT", "BE", "BG", "CY", "HR", "DK", "EE", "FI", "FR", "DE", "GR", "IE",
+        "LV", "LT", "LU", "MT", "NL", "PL", "PT", "CZ", "RO", "SK", "SI", "ES", "SE", "HU"
+    );
+
+    private final ProductService productService;
+    private final SettingService settingService;
+    private final CouponService couponService;
+    private final ObjectMapper objectMapper;
+
+    public PricingEngine(ProductService productService, SettingService settingService, CouponService couponService, ObjectMapper objectMapper) {
+        this.productService = productService;
+        this.settingService = settingService;
+        this.couponService = couponService;
+        this.objectMapper = objectMapper;
+    }
+
+    public PricedCart price(OrderDTO orderDTO) throws IOException, ExecutionException, InterruptedException {
+        List<Map<String, Object>> items = parseItems(orderDTO.getItems());
+        Map<String, Product> products = productService.getProductsByIds(collectProductIds(items));
+        return price(orderDTO, items, products);
+    }
+
+    /**
+     * Variante per chi ha già letto i prodotti (es. all'interno di una transazione).
+     */
+    public PricedCart price(OrderDTO orderDTO, List<Map<String, Object>> items, Map<String, Product> products) throws ExecutionException, InterruptedException {
+        List<PricedCart.Line> lines = resolveLines(items, products);
+
+        Map<String, Integer> requested = new LinkedHashMap<>();
+        BigDecimal merchandiseTotal = BigDecimal.ZERO;
+        for (PricedCart.Line line : lines) {
+            merchandiseTotal = merchandiseTotal.add(BigDecimal.valueOf(line.getUnitPrice()).multiply(BigDecimal.valueOf(line.getQuantity())));
+            if (line.getQuantity() > 0) {
+                requested.merge(line.getProductId(), line.getQuantity(), Integer::sum);
+            }
+        }
+
+        List<String> stockProblems = productService.collectStockProblems(requested, products);
+
+        BigDecimal discountAmount = calculateDiscount(orderDTO.getCouponCode(), merchandiseTotal);
+        BigDecimal merchandiseAfterDiscount = merchandiseTotal.subtract(discountAmount);
+        BigDecimal shippingCost = calculateShipping(orderDTO, merchandiseAfterDiscount);
+        BigDecimal finalTotal = merchandiseAfterDiscount.add(shippingCost);
+
+        return new PricedCart(lines, stockProblems, merchandiseTotal, discountAmount, shippingCost, finalTotal);
+    }
+
+    /**
+     * Risolve le righe del carrello (prezzo applicato e classificazione pre-ordine) senza calcolare sconti e spedizione.
+     */
+    public List<PricedCart.Line> resolveLines(List<Map<String, Object>> items, Map<String, Product> products) {
+        List<PricedCart.Line> lines = new ArrayList<>();
+        LocalDate today = LocalDate.now();
+
+        for (Map<String, Object> item : items) {
+            String productId = (String) item.get("id");
+            int quantity = ((Number) item.get("quantity")).intValue();
+
+            Product product = products.get(productId);
+            if (product == null) {
+                throw new IllegalArgumentException("Product with ID " + productId + " not found.");
+            }
+
+            double priceToUse = (product.getDiscountPrice() != null && product.getDiscountPrice() > 0)
+                ? product.getDiscountPrice()
+                : product.getPrice();
+
+            // Il prezzo di listino viene salvato sulla riga dell'ordine figlio
+            item.put("price", product.getPrice());
+            lines.add(new PricedCart.Line(item, product, quantity, priceToUse, isPreOrder(product, today)));
+        }
+        return lines;
+    }
+
+    public List<Map<String, Object>> parseItems(String itemsJson) throws IOException {
+        return objectMapper.readValue(itemsJson, new TypeReference<List<Map<String, Object>>>() {});
+    }
+
+    public List<String> collectProductIds(List<Map<String, Object>> items) {
+        return items.stream()
+                .map(item -> (String) item.get("id"))
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList());
+    }
+
+    private BigDecimal calculateDiscount(String couponCode, BigDecimal merchandiseTotal) throws ExecutionException, InterruptedException {
+        BigDecimal discountAmount = BigDecimal.ZERO;
+        if (couponCode == null || couponCode.isEmpty()) {
+            return discountAmount;
+        }
+
+        // 1. Gestione Coupon Volatile Newsletter
+        if (NEWSLETTER_SESSION_COUPON.equals(couponCode)) {
+            BigDecimal percentage = new BigDecimal("10").divide(new BigDecimal("100"), 2, RoundingMode.HALF_UP);
+            discountAmount = merchandiseTotal.multiply(percentage);
+        }
+        // 2. Gestione Coupon Standard da DB
+        else {
+            Optional<Coupon> couponOpt = couponService.verifyCoupon(couponCode);
+            if (couponOpt.isPresent()) {
+                Coupon coupon = couponOpt.get();
+                if (coupon.getDiscountType() == DiscountType.PERCENTAGE) {
+                    BigDecimal percentage = coupon.getDiscountValue().divide(new BigDecimal("100"), 2, RoundingMode.HALF_UP);
+                    discountAmount = merchandiseTotal.multiply(percentage);
+                } else { // FIXED_AMOUNT
+                    discountAmount = coupon.getDiscountValue();
+                }
+            }
+        }
+
+        // Cap dello sconto: non può superare il totale merce
+        if (discountAmount.compareTo(merchandiseTotal) > 0) {
+            discountAmount = merchandiseTotal;
+        }
+        return discountAmount;
+    }
+
+    private BigDecimal calculateShipping(OrderDTO orderDTO, BigDecimal merchandiseAfterDiscount) throws ExecutionException, InterruptedException {
+        Setting settings = settingService.getSettings();
+        BigDecimal shippingCost = BigDecimal.ZERO;
+        String country = orderDTO.getCountry();
+        String normalizedCountry = (country != null) ? country.trim().toUpperCase() : "";
+
+        BigDecimal freeShippingThreshold;
+        BigDecimal standardShippingCost;
+        BigDecimal splitShippingCost;
+
+        if (EU_COUNTRY_CODES.contains(normalizedCountry)) {
+            freeShippingThreshold = Optional.ofNullable(settings.getFreeShippingThreshold_UE()).orElse(BigDecimal.ZERO);
+            standardShippingCost = Optional.ofNullable(settings.getStandardShippingCost_UE()).orElse(BigDecimal.ZERO);
+            splitShippingCost = Optional.ofNullable(settings.getSplitShippingCost_UE()).orElse(BigDecimal.ZERO);
+        } else {
+            // Italia e paesi extra-UE usano le tariffe nazionali
+            freeShippingThreshold = Optional.ofNullable(settings.getFreeShippingThreshold()).orElse(BigDecimal.ZERO);
+            standardShippingCost = Optional.ofNullable(settings.getStandardShippingCost()).orElse(BigDecimal.ZERO);
+            splitShippingCost = Optional.ofNullable(settings.getSplitShippingCost()).orElse(BigDecimal.ZERO);
+        }
+
+        if (freeShippingThreshold.compareTo(BigDecimal.ZERO) <= 0 || merchandiseAfterDiscount.compareTo(freeShippingThreshold) < 0) {
+            shippingCost = standardShippingCost;
+            if ("split".equalsIgnoreCase(orderDTO.getShipmentPreference())) {
+                shippingCost = shippingCost.add(splitShippingCost);
+            }
+        }
+        return shippingCost;
+    }
+
+    private boolean isPreOrder(Product product, LocalDate today) {
+        String preSaleDateStr = product.getPreSaleDate();
+        if (preSaleDateStr == null || preSaleDateStr.isEmpty()) {
+            return false;
+        }
+        try {
+            // Assumiamo che la data sia nel formato YYYY-MM-DD
+            return LocalDate.parse(preSaleDateStr).isAfter(today);
+        } catch (DateTimeParseException e) {
+            logger.warn("Data pre-ordine non valida per il prodotto {}: {}", product.getId(), preSaleDateStr);
+            return false;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.demo.payment;
 
 import com.example.demo.order.OrderDTO;
+import com.example.demo.product.InsufficientStockException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -23,6 +24,8 @@ public class KlarnaController {
         try {
             String checkoutUrl = klarnaService.createCheckoutSession(orderDTO);
             return ResponseEntity.ok(Map.of("checkoutUrl", checkoutUrl));
+        } catch (InsufficientStockException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
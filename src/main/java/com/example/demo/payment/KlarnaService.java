@@ -2,6 +2,10 @@ package com.example.demo.payment;
 
 import com.example.demo.order.OrderDTO;
 import com.example.demo.order.OrderService;
+import com.example.demo.order.PricedCart;
+import com.example.demo.order.PricingEngine;
+import com.example.demo.product.InsufficientStockException;
+import com.example.demo.product.StockReservationService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
@@ -10,9 +14,6 @@ import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.firestore.Transaction;
 import com.stripe.Stripe;
 import com.stripe.exception.StripeException;
-import com.stripe.model.BalanceTransaction;
-import com.stripe.model.Charge;
-import com.stripe.model.PaymentIntent;
 import com.stripe.model.checkout.Session;
 import com.stripe.param.checkout.SessionCreateParams;
 import org.slf4j.Logger;
@@ -21,9 +22,6 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -34,22 +32,29 @@ public class KlarnaService {
     private static final Logger logger = LoggerFactory.getLogger(KlarnaService.class);
 
     private final OrderService orderService;
+    private final PricingEngine pricingEngine;
     private final Firestore firestore;
     private final ObjectMapper objectMapper;
+    private final StockReservationService stockReservationService;
 
     @Value("${stripe.secret.key}")
     private String stripeApiKey;
 
-    public KlarnaService(OrderService orderService, Firestore firestore, ObjectMapper objectMapper) {
+    public KlarnaService(OrderService orderService, PricingEngine pricingEngine, Firestore firestore, ObjectMapper objectMapper, StockReservationService stockReservationService) {
         this.orderService = orderService;
+        this.pricingEngine = pricingEngine;
         this.firestore = firestore;
         this.objectMapper = objectMapper;
+        this.stockReservationService = stockReservationService;
     }
 
     public String createCheckoutSession(OrderDTO orderDTO) throws StripeException, IOException, ExecutionException, InterruptedException {
         Stripe.apiKey = stripeApiKey;
 
-        double serverTotal = orderService.calculateOrderTotal(orderDTO);
+        PricedCart cart = pricingEngine.price(orderDTO);
+        cart.assertStockAvailable();
+
+        double serverTotal = cart.getTotalValue();
         long amountInCents = (long) (serverTotal * 100);
 
         String tempId = UUID.randomUUID().toString();
@@ -83,6 +88,14 @@ public class KlarnaService {
                 .build();
 
         Session session = Session.create(params);
+
+        // Prenotazione legata alla sessione: viene confermata in verifyAndCreateOrder
+        try {
+            stockReservationService.hold(session.getId(), cart.getRequestedQuantities());
+        } catch (InsufficientStockException e) {
+            session.expire();
+            throw e;
+        }
         return session.getUrl();
     }
 
@@ -123,7 +136,7 @@ public class KlarnaService {
         if (orderData == null) {
             if (paymentIntentId != null) {
                 QuerySnapshot existingOrders = firestore.collection("orders")
-                        .whereEqualTo("paymentToken", paymentIntentId)
+                        .whereEqualTo("paymentIntentId", paymentIntentId)
                         .limit(1)
                         .get().get();
                 if (!existingOrders.isEmpty()) {
@@ -140,40 +153,8 @@ public class KlarnaService {
         orderDTO.setPaymentMethod("klarna");
         orderDTO.setPaymentToken(paymentIntentId);
 
-        // --- RECUPERO FEE STRIPE (KLARNA) ---
-        if (paymentIntentId != null) {
-            try {
-                List<String> expandList = new ArrayList<>();
-                expandList.add("latest_charge.balance_transaction");
-
-                Map<String, Object> params = new HashMap<>();
-                params.put("expand", expandList);
-
-                PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId, params, null);
-                
-                Charge latestCharge = (Charge) paymentIntent.getLatestChargeObject();
-                if (latestCharge != null) {
-                    BalanceTransaction balanceTransaction = latestCharge.getBalanceTransactionObject();
-                    if (balanceTransaction != null) {
-                        long feeCents = balanceTransaction.getFee();
-                        long netCents = balanceTransaction.getNet();
-                        
-                        double feeEuro = feeCents / 100.0;
-                        double netEuro = netCents / 100.0;
-                        
-                        orderDTO.setPaymentFee(feeEuro);
-                        orderDTO.setNetRevenue(netEuro);
-                        
-                        logger.info("Klarna/Stripe Fee: {} EUR, Net: {} EUR", feeEuro, netEuro);
-                    }
-                }
-            } catch (Exception e) {
-                logger.error("Error retrieving Klarna fees from Stripe: {}", e.getMessage());
-            }
-        }
-        // ------------------------------------
-
-        orderService.createOrder(orderDTO);
+        // Le fee Stripe vengono completate in background da StripeFeeReconciler
+        orderService.createOrder(orderDTO, sessionId);
         logger.info("Order created successfully for session: {}", sessionId);
     }
 }
@@ -0,0 +1,130 @@
+package com.example.demo.payment;
+
+import com.example.demo.order.Order;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.stripe.exception.StripeException;
+import com.stripe.model.BalanceTransaction;
+import com.stripe.model.Charge;
+import com.stripe.model.PaymentIntent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Completa paymentFee e netRevenue degli ordini pagati con Stripe (carta e Klarna).
+ * Al checkout la balance transaction spesso non è ancora pronta, quindi l'ordine viene salvato con
+ * feeStatus = PENDING e questo job la recupera a lotti. Se non è disponibile o Stripe risponde con un errore,
+ * l'ordine viene ritentato con backoff esponenziale; esauriti i tentativi passa a FAILED.
+ * La query richiede l'indice composito su orders (feeStatus, feeNextAttemptAt), definito in firestore.indexes.json.
+ */
+@Component
+public class StripeFeeReconciler {
+
+    private static final Logger logger = LoggerFactory.getLogger(StripeFeeReconciler.class);
+
+    private final CollectionReference ordersCollection;
+
+    @Value("${stripe.fees.batch-size:50}")
+    private int batchSize;
+
+    @Value("${stripe.fees.max-attempts:8}")
+    private int maxAttempts;
+
+    @Value("${stripe.fees.initial-backoff-ms:60000}")
+    private long initialBackoffMs;
+
+    public StripeFeeReconciler(Firestore firestore) {
+        this.ordersCollection = firestore.collection("orders");
+    }
+
+    @Scheduled(fixedDelayString = "${stripe.fees.poll-interval-ms:60000}", initialDelayString = "${stripe.fees.initial-delay-ms:30000}")
+    public void reconcilePendingFees() {
+        try {
+            List<QueryDocumentSnapshot> due = ordersCollection
+                    .whereEqualTo("feeStatus", Order.FEE_STATUS_PENDING)
+                    .whereLessThanOrEqualTo("feeNextAttemptAt", Timestamp.now())
+                    .limit(batchSize)
+                    .get().get().getDocuments();
+            if (due.isEmpty()) {
+                return;
+            }
+
+            // Ogni ordine viene salvato a sé: un documento problematico non fa perdere i risultati degli altri
+            int resolved = 0;
+            for (QueryDocumentSnapshot doc : due) {
+                Map<String, Object> updates = reconcile(doc);
+                try {
+                    doc.getReference().update(updates).get();
+                    if (Order.FEE_STATUS_RESOLVED.equals(updates.get("feeStatus"))) {
+                        resolved++;
+                    }
+                } catch (ExecutionException e) {
+                    // Tipicamente l'ordine è stato eliminato dopo la query (NOT_FOUND): non c'è nulla da aggiornare
+                    logger.error("Could not save Stripe fees for order {}: {}", doc.getId(), e.getMessage());
+                }
+            }
+            logger.info("Stripe fee reconciliation: {} of {} orders resolved.", resolved, due.size());
+        } catch (ExecutionException | InterruptedException e) {
+            logger.error("Stripe fee reconciliation failed: {}", e.getMessage());
+        }
+    }
+
+    private Map<String, Object> reconcile(QueryDocumentSnapshot doc) {
+        String paymentIntentId = doc.getString("paymentIntentId");
+        Long previousAttempts = doc.getLong("feeAttempts");
+        int attempts = (previousAttempts != null ? previousAttempts.intValue() : 0) + 1;
+
+        Map<String, Object> updates = new HashMap<>();
+        updates.put("feeAttempts", attempts);
+        String error;
+        try {
+            BalanceTransaction balanceTransaction = retrieveBalanceTransaction(paymentIntentId);
+            if (balanceTransaction != null) {
+                updates.put("paymentFee", balanceTransaction.getFee() / 100.0);
+                updates.put("netRevenue", balanceTransaction.getNet() / 100.0);
+                updates.put("feeStatus", Order.FEE_STATUS_RESOLVED);
+                updates.put("feeNextAttemptAt", null);
+                return updates;
+            }
+            error = "balance transaction not available yet";
+        } catch (StripeException e) {
+            error = e.getMessage();
+        } catch (RuntimeException e) {
+            // Anche un errore imprevisto conta come tentativo, così l'ordine non blocca il lotto a ogni giro
+            error = e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+
+        if (attempts >= maxAttempts) {
+            updates.put("feeStatus", Order.FEE_STATUS_FAILED);
+            updates.put("feeNextAttemptAt", null);
+            logger.error("Stripe fees for order {} not resolved after {} attempts: {}", doc.getId(), attempts, error);
+        } else {
+            long backoff = initialBackoffMs * (1L << Math.min(attempts - 1, 10));
+            updates.put("feeNextAttemptAt", Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + backoff) * 1000));
+            logger.warn("Stripe fees for order {} not available, attempt {}/{}: {}", doc.getId(), attempts, maxAttempts, error);
+        }
+        return updates;
+    }
+
+    private BalanceTransaction retrieveBalanceTransaction(String paymentIntentId) throws StripeException {
+        if (paymentIntentId == null) {
+            return null;
+        }
+        Map<String, Object> params = new HashMap<>();
+        params.put("expand", List.of("latest_charge.balance_transaction"));
+
+        PaymentIntent paymentIntent = PaymentIntent.retrieve(paymentIntentId, params, null);
+        Charge latestCharge = paymentIntent.getLatestChargeObject();
+        return latestCharge != null ? latestCharge.getBalanceTransactionObject() : null;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.demo.paypal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Esito di una cattura PayPal con gli importi di seller_receivable_breakdown (null se PayPal non li riporta).
+ */
+public record PayPalCaptureResult(String orderId, String status, String captureId, Double grossAmount, Double paypalFee, Double netAmount) {
+
+    /**
+     * Legge la prima cattura da una risposta PayPal: vale sia per la risposta di /capture sia per il dettaglio dell'ordine.
+     * Si naviga solo il percorso purchase_units[0].payments.captures[0], senza visitare il resto dell'albero.
+     */
+    public static PayPalCaptureResult from(String orderId, JsonNode response) {
+        String status = text(response.path("status"));
+        JsonNode capture = response.at("/purchase_units/0/payments/captures/0");
+        JsonNode breakdown = capture.path("seller_receivable_breakdown");
+        return new PayPalCaptureResult(
+                orderId,
+                status,
+                text(capture.path("id")),
+                amount(breakdown.path("gross_amount")),
+                amount(breakdown.path("paypal_fee")),
+                amount(breakdown.path("net_amount"))
+        );
+    }
+
+    public boolean hasFees() {
+        return paypalFee != null && netAmount != null;
+    }
+
+    private static String text(JsonNode node) {
+        return node.isMissingNode() || node.isNull() ? null : node.asText();
+    }
+
+    private static Double amount(JsonNode money) {
+        JsonNode value = money.path("value");
+        return value.isMissingNode() || value.isNull() ? null : value.asDouble();
+    }
+}
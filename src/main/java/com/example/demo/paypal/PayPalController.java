@@ -1,7 +1,10 @@
 package com.example.demo.paypal;
 
 import com.example.demo.order.OrderDTO;
-import com.example.demo.order.OrderService;
+import com.example.demo.order.PricedCart;
+import com.example.demo.order.PricingEngine;
+import com.example.demo.product.InsufficientStockException;
+import com.example.demo.product.StockReservationService;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -14,17 +17,22 @@ import java.util.Map;
 public class PayPalController {
 
     private final PayPalService payPalService;
-    private final OrderService orderService;
+    private final PricingEngine pricingEngine;
+    private final StockReservationService stockReservationService;
 
-    public PayPalController(PayPalService payPalService, OrderService orderService) {
+    public PayPalController(PayPalService payPalService, PricingEngine pricingEngine, StockReservationService stockReservationService) {
         this.payPalService = payPalService;
-        this.orderService = orderService;
+        this.pricingEngine = pricingEngine;
+        this.stockReservationService = stockReservationService;
     }
 
     @PostMapping("/create-order")
     public ResponseEntity<?> createOrder(@RequestBody OrderDTO orderDTO) {
         try {
-            double serverTotal = orderService.calculateOrderTotal(orderDTO);
+            PricedCart cart = pricingEngine.price(orderDTO);
+            cart.assertStockAvailable();
+
+            double serverTotal = cart.getTotalValue();
             double clientTotal = orderDTO.getSubtotal();
 
             if (Math.abs(serverTotal - clientTotal) > 0.01) {
@@ -35,8 +43,12 @@ public class PayPalController {
 
             // Cambiato per ricevere la mappa con orderId e approveUrl
             Map<String, String> payPalData = payPalService.createOrder(serverTotal);
+            // L'ordine PayPal non ancora approvato scade da solo: basta la scadenza della prenotazione
+            stockReservationService.hold(payPalData.get("orderId"), cart.getRequestedQuantities());
             return ResponseEntity.ok(payPalData);
 
+        } catch (InsufficientStockException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
         } catch (Exception e) {
             e.printStackTrace();
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(Map.of("error", e.getMessage()));
@@ -47,10 +59,10 @@ public class PayPalController {
     public ResponseEntity<?> captureOrder(@RequestBody Map<String, String> payload) {
         try {
             String orderId = payload.get("orderId");
-            String status = payPalService.captureOrder(orderId);
+            PayPalCaptureResult capture = payPalService.captureOrder(orderId);
 
             Map<String, String> response = new HashMap<>();
-            response.put("status", status);
+            response.put("status", capture.status());
             return ResponseEntity.ok(response);
 
         } catch (Exception e) {
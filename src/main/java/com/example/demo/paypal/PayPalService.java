@@ -4,19 +4,21 @@ import com.example.demo.config.PayPalConfig;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.time.Duration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,42 +30,53 @@ public class PayPalService {
     private final PayPalConfig payPalConfig;
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
+    private final PayPalTokenCache tokenCache;
+    // Catture recenti per ID ordine PayPal: la creazione dell'ordine che segue la cattura ne riusa le fee
+    private final Cache<String, PayPalCaptureResult> recentCaptures;
 
     @Value("${frontend.url}")
     private String frontendBaseUrl;
 
-    public PayPalService(PayPalConfig payPalConfig, RestTemplate restTemplate, ObjectMapper objectMapper) {
+    public PayPalService(PayPalConfig payPalConfig, @Qualifier("paypalRestTemplate") RestTemplate restTemplate, ObjectMapper objectMapper, PayPalTokenCache tokenCache,
+                         @Value("${paypal.capture.cache-ttl-minutes:30}") long captureCacheTtlMinutes) {
         this.payPalConfig = payPalConfig;
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
+        this.tokenCache = tokenCache;
+        this.recentCaptures = CacheBuilder.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(captureCacheTtlMinutes))
+                .maximumSize(10_000)
+                .build();
     }
 
-    private String getAccessToken() throws IOException {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-        headers.setBasicAuth(payPalConfig.getClientId(), payPalConfig.getClientSecret());
-
-        MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
-        body.add("grant_type", "client_credentials");
-
-        HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(body, headers);
-
-        ResponseEntity<String> response = restTemplate.postForEntity(
-                payPalConfig.getBaseUrl() + "/v1/oauth2/token",
-                request,
-                String.class
-        );
+    /**
+     * Esegue una chiamata PayPal con il token in cache. Se PayPal risponde 401 (token revocato o scaduto in anticipo)
+     * il token viene scartato e la chiamata ritentata una volta con un token nuovo.
+     */
+    private <T> T withAccessToken(PayPalCall<T> call) throws IOException {
+        String accessToken = tokenCache.getToken();
+        try {
+            return call.execute(accessToken);
+        } catch (HttpClientErrorException.Unauthorized e) {
+            logger.warn("PayPal rejected the cached access token, refreshing and retrying once.");
+            tokenCache.invalidate(accessToken);
+            return call.execute(tokenCache.getToken());
+        }
+    }
 
-        JsonNode responseJson = objectMapper.readTree(response.getBody());
-        return responseJson.get("access_token").asText();
+    @FunctionalInterface
+    private interface PayPalCall<T> {
+        T execute(String accessToken) throws IOException;
     }
 
-    public Map<String, String> createOrder(double subtotal) throws IOException {
-        String accessToken = getAccessToken();
+    private HttpHeaders jsonHeaders(String accessToken) {
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.setBearerAuth(accessToken);
+        return headers;
+    }
 
+    public Map<String, String> createOrder(double subtotal) throws IOException {
         String formattedSubtotal = new BigDecimal(subtotal).setScale(2, RoundingMode.HALF_UP).toString();
 
         ObjectNode requestBody = objectMapper.createObjectNode();
@@ -94,14 +107,12 @@ public class PayPalService {
 
         logger.info("PayPal Create Order: amount={}, return={}", formattedSubtotal, returnUrl);
 
-        HttpEntity<String> request = new HttpEntity<>(requestBody.toString(), headers);
-
         try {
-            ResponseEntity<String> response = restTemplate.postForEntity(
+            ResponseEntity<String> response = withAccessToken(accessToken -> restTemplate.postForEntity(
                     payPalConfig.getBaseUrl() + "/v2/checkout/orders",
-                    request,
+                    new HttpEntity<>(requestBody.toString(), jsonHeaders(accessToken)),
                     String.class
-            );
+            ));
 
             JsonNode responseJson = objectMapper.readTree(response.getBody());
             String orderId = responseJson.get("id").asText();
@@ -143,26 +154,19 @@ public class PayPalService {
         }
     }
 
-    public String captureOrder(String orderId) throws IOException {
-        String accessToken = getAccessToken();
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(accessToken);
-
-        HttpEntity<String> request = new HttpEntity<>(null, headers);
-
+    public PayPalCaptureResult captureOrder(String orderId) throws IOException {
         try {
             logger.info("PayPal Capture attempting for orderId: {}", orderId);
-            ResponseEntity<String> response = restTemplate.postForEntity(
+            ResponseEntity<String> response = withAccessToken(accessToken -> restTemplate.postForEntity(
                     payPalConfig.getBaseUrl() + "/v2/checkout/orders/" + orderId + "/capture",
-                    request,
+                    new HttpEntity<>(null, jsonHeaders(accessToken)),
                     String.class
-            );
+            ));
 
-            JsonNode responseJson = objectMapper.readTree(response.getBody());
-            String status = responseJson.get("status").asText();
-            logger.info("PayPal Capture successful: {} for orderId: {}", status, orderId);
-            return status;
+            PayPalCaptureResult result = PayPalCaptureResult.from(orderId, objectMapper.readTree(response.getBody()));
+            recentCaptures.put(orderId, result);
+            logger.info("PayPal Capture successful: {} for orderId: {}", result.status(), orderId);
+            return result;
         } catch (HttpClientErrorException e) {
             logger.error("PayPal Capture Error for ID {}: {} - {}", orderId, e.getStatusCode(), e.getResponseBodyAsString());
             throw e;
@@ -172,20 +176,25 @@ public class PayPalService {
         }
     }
 
-    public JsonNode getOrderDetails(String orderId) throws IOException {
-        String accessToken = getAccessToken();
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_JSON);
-        headers.setBearerAuth(accessToken);
-
-        HttpEntity<String> request = new HttpEntity<>(null, headers);
+    /**
+     * Restituisce l'esito della cattura di {@code orderId} e lo rimuove dalla cache. Se la cattura è avvenuta su
+     * un'altra istanza o è già scaduta dalla cache, l'esito viene riletto dal dettaglio dell'ordine PayPal.
+     */
+    public PayPalCaptureResult takeCaptureResult(String orderId) throws IOException {
+        PayPalCaptureResult cached = recentCaptures.asMap().remove(orderId);
+        if (cached != null) {
+            return cached;
+        }
+        return PayPalCaptureResult.from(orderId, getOrderDetails(orderId));
+    }
 
-        ResponseEntity<String> response = restTemplate.exchange(
+    public JsonNode getOrderDetails(String orderId) throws IOException {
+        ResponseEntity<String> response = withAccessToken(accessToken -> restTemplate.exchange(
                 payPalConfig.getBaseUrl() + "/v2/checkout/orders/" + orderId,
                 HttpMethod.GET,
-                request,
+                new HttpEntity<>(null, jsonHeaders(accessToken)),
                 String.class
-        );
+        ));
 
         return objectMapper.readTree(response.getBody());
     }
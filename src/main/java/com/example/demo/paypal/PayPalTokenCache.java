@@ -0,0 +1,176 @@
+package com.example.demo.paypal;
+
+import com.example.demo.config.PayPalConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache del token OAuth di PayPal.
+ * Il token viene riutilizzato fino alla scadenza indicata da expires_in e rinnovato in background poco prima,
+ * così le chiamate del checkout non pagano la richiesta a /v1/oauth2/token. Se più richieste trovano il token
+ * scaduto nello stesso momento, condividono un'unica richiesta di rinnovo.
+ */
+@Component
+public class PayPalTokenCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PayPalTokenCache.class);
+
+    private final PayPalConfig payPalConfig;
+    private final RestTemplate restTemplate;
+    private final ObjectMapper objectMapper;
+
+    private final AtomicReference<CachedToken> current = new AtomicReference<>();
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "paypal-token-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private CompletableFuture<CachedToken> inFlight;
+    private ScheduledFuture<?> scheduledRefresh;
+
+    // Anticipo con cui il token viene rinnovato rispetto alla scadenza
+    @Value("${paypal.token.refresh-ahead-seconds:300}")
+    private long refreshAheadSeconds;
+
+    public PayPalTokenCache(PayPalConfig payPalConfig, @Qualifier("paypalRestTemplate") RestTemplate restTemplate, ObjectMapper objectMapper) {
+        this.payPalConfig = payPalConfig;
+        this.restTemplate = restTemplate;
+        this.objectMapper = objectMapper;
+    }
+
+    @PreDestroy
+    public void stop() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * @return un token valido, dalla cache se possibile, altrimenti attendendo il rinnovo in corso.
+     */
+    public String getToken() throws IOException {
+        CachedToken token = current.get();
+        if (token != null && token.isValid()) {
+            return token.value();
+        }
+        try {
+            return refresh().get().value();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IOException("PayPal token refresh failed", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a PayPal token", e);
+        }
+    }
+
+    /**
+     * Scarta il token se è ancora quello in cache: da chiamare quando PayPal risponde 401.
+     */
+    public void invalidate(String tokenValue) {
+        CachedToken token = current.get();
+        if (token != null && token.value().equals(tokenValue)) {
+            current.compareAndSet(token, null);
+        }
+    }
+
+    /**
+     * Avvia un rinnovo, oppure restituisce quello già in corso.
+     */
+    private synchronized CompletableFuture<CachedToken> refresh() {
+        if (inFlight == null) {
+            CompletableFuture<CachedToken> future = CompletableFuture.supplyAsync(this::fetchToken, refresher);
+            inFlight = future;
+            future.whenComplete((token, error) -> onRefreshed(future, token, error));
+        }
+        return inFlight;
+    }
+
+    private synchronized void onRefreshed(CompletableFuture<CachedToken> future, CachedToken token, Throwable error) {
+        if (inFlight == future) {
+            inFlight = null;
+        }
+        if (error != null) {
+            logger.error("PayPal token refresh failed: {}", error.getMessage());
+            return;
+        }
+        current.set(token);
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        long delayMs = Duration.between(Instant.now(), token.refreshAt()).toMillis();
+        // Senza expires_in utilizzabile non pianifichiamo nulla: il rinnovo avverrà alla prima richiesta
+        scheduledRefresh = delayMs > 0 ? refresher.schedule(this::refresh, delayMs, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private CachedToken fetchToken() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        headers.setBasicAuth(payPalConfig.getClientId(), payPalConfig.getClientSecret());
+
+        MultiValueMap<String, String> body = new LinkedMultiValueMap<>();
+        body.add("grant_type", "client_credentials");
+
+        ResponseEntity<String> response = restTemplate.postForEntity(
+                payPalConfig.getBaseUrl() + "/v1/oauth2/token",
+                new HttpEntity<>(body, headers),
+                String.class
+        );
+
+        try {
+            JsonNode responseJson = objectMapper.readTree(response.getBody());
+            String accessToken = responseJson.get("access_token").asText();
+            long expiresIn = responseJson.has("expires_in") ? responseJson.get("expires_in").asLong() : 0;
+
+            Instant now = Instant.now();
+            Instant expiresAt = now.plusSeconds(expiresIn);
+            // Per token molto brevi rinnoviamo a metà della durata invece che con l'anticipo configurato
+            long ahead = Math.min(refreshAheadSeconds, expiresIn / 2);
+            logger.info("PayPal access token refreshed, expires in {} s.", expiresIn);
+            return new CachedToken(accessToken, expiresAt, expiresAt.minusSeconds(ahead));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record CachedToken(String value, Instant expiresAt, Instant refreshAt) {
+
+        // Margine per non usare un token che scade mentre la richiesta è in viaggio
+        private static final long SAFETY_MARGIN_SECONDS = 30;
+
+        boolean isValid() {
+            return Instant.now().isBefore(expiresAt.minusSeconds(SAFETY_MARGIN_SECONDS));
+        }
+    }
+}
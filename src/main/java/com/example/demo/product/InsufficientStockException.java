@@ -3,9 +3,26 @@ package com.example.demo.product;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ResponseStatus;
 
+import java.util.Collections;
+import java.util.List;
+
 @ResponseStatus(HttpStatus.CONFLICT) // Risponde con 409 Conflict
 public class InsufficientStockException extends RuntimeException {
+
+    // Elenco di tutte le righe del carrello senza disponibilità sufficiente
+    private final List<String> details;
+
     public InsufficientStockException(String message) {
         super(message);
+        this.details = Collections.singletonList(message);
+    }
+
+    public InsufficientStockException(List<String> details) {
+        super(String.join("; ", details));
+        this.details = List.copyOf(details);
+    }
+
+    public List<String> getDetails() {
+        return details;
     }
 }
@@ -1,5 +1,8 @@
 package com.example.demo.product;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.cloud.firestore.annotation.Exclude;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -13,6 +16,8 @@ public class Product {
     private String description;
     private double price;
     private int stock;
+    @JsonIgnore
+    private int reservedStock; // Quantità impegnata da checkout ancora in corso: non esposta nelle API pubbliche
     private List<String> imageUrls;
     private String category;
     private boolean visible = true;
@@ -31,4 +36,11 @@ public class Product {
     private String ingredients_EN;
     private String origin_EN;
     private String nutrition_EN;
+
+    // Disponibilità mostrata allo shop: stock meno le prenotazioni attive. Calcolata, non salvata su Firestore.
+    @JsonProperty("availableStock")
+    @Exclude
+    public int getAvailableStock() {
+        return Math.max(0, ProductService.availableStock(this));
+    }
 }
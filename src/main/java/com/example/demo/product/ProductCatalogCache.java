@@ -0,0 +1,158 @@
+package com.example.demo.product;
+
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Cache in memoria del catalogo prodotti.
+ * Carica la collezione "products" una sola volta all'avvio e resta allineata tramite uno snapshot listener di Firestore.
+ * Ad ogni modifica viene costruito un nuovo snapshot immutabile che sostituisce il precedente in modo atomico,
+ * così le letture non vedono mai uno stato parziale e non toccano Firestore.
+ */
+@Component
+public class ProductCatalogCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ProductCatalogCache.class);
+
+    private final CollectionReference productsCollection;
+    private final AtomicReference<CatalogSnapshot> snapshot = new AtomicReference<>();
+
+    @Value("${product.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${product.cache.startup-timeout-ms:10000}")
+    private long startupTimeoutMs;
+
+    private volatile ListenerRegistration registration;
+
+    public ProductCatalogCache(Firestore firestore) {
+        this.productsCollection = firestore.collection("products");
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!cacheEnabled) {
+            logger.info("Product catalog cache disabled. Reads will go straight to Firestore.");
+            return;
+        }
+        CountDownLatch firstSnapshot = new CountDownLatch(1);
+        subscribe(firstSnapshot);
+        try {
+            // Il primo evento del listener contiene l'intera collezione: lo attendiamo per partire già "caldi".
+            if (!firstSnapshot.await(startupTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Product catalog not loaded within {} ms. Falling back to Firestore until the listener catches up.", startupTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+            registration = null;
+        }
+    }
+
+    /**
+     * @return i prodotti visibili, oppure empty se la cache non è disponibile e bisogna leggere da Firestore.
+     */
+    public Optional<List<Product>> getVisibleProducts() {
+        return currentSnapshot().map(CatalogSnapshot::visible);
+    }
+
+    /**
+     * @return tutti i prodotti, oppure empty se la cache non è disponibile.
+     */
+    public Optional<List<Product>> getAllProducts() {
+        return currentSnapshot().map(CatalogSnapshot::all);
+    }
+
+    /**
+     * @return i prodotti per ID, oppure empty se la cache non è disponibile.
+     */
+    public Optional<Map<String, Product>> getProductsById() {
+        return currentSnapshot().map(CatalogSnapshot::byId);
+    }
+
+    /**
+     * Lo snapshot viene letto una sola volta: il listener può azzerarlo in qualsiasi momento,
+     * quindi chi chiama lavora sempre su una vista coerente oppure ripiega su Firestore.
+     */
+    private Optional<CatalogSnapshot> currentSnapshot() {
+        if (!cacheEnabled) {
+            return Optional.empty();
+        }
+        if (registration == null) {
+            // Il listener è caduto (errore lato Firestore): proviamo a ri-sottoscriverci alla prima lettura utile.
+            subscribe(null);
+        }
+        return Optional.ofNullable(snapshot.get());
+    }
+
+    private synchronized void subscribe(CountDownLatch firstSnapshot) {
+        if (registration != null) {
+            return;
+        }
+        registration = productsCollection.addSnapshotListener((querySnapshot, error) -> {
+            if (error != null) {
+                logger.error("Product catalog listener failed: {}", error.getMessage());
+                // Lo snapshot corrente non è più garantito aggiornato: torniamo a leggere da Firestore.
+                snapshot.set(null);
+                registration = null;
+            } else if (querySnapshot != null) {
+                snapshot.set(CatalogSnapshot.of(querySnapshot));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
+    }
+
+    /**
+     * Vista immutabile del catalogo in un dato istante.
+     */
+    private record CatalogSnapshot(List<Product> all, List<Product> visible, Map<String, Product> byId) {
+
+        static CatalogSnapshot of(QuerySnapshot querySnapshot) {
+            List<Product> all = new ArrayList<>();
+            List<Product> visible = new ArrayList<>();
+            Map<String, Product> byId = new HashMap<>();
+            for (QueryDocumentSnapshot doc : querySnapshot.getDocuments()) {
+                Product product = doc.toObject(Product.class);
+                product.setId(doc.getId());
+                all.add(product);
+                if (product.isVisible()) {
+                    visible.add(product);
+                }
+                byId.put(product.getId(), product);
+            }
+            return new CatalogSnapshot(
+                    Collections.unmodifiableList(all),
+                    Collections.unmodifiableList(visible),
+                    Collections.unmodifiableMap(byId)
+            );
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.demo.product;
 
+import com.example.demo.firestore.CursorPaginator;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -13,9 +14,11 @@ import java.util.concurrent.ExecutionException;
 public class ProductController {
 
     private final ProductService productService;
+    private final CursorPaginator cursorPaginator;
 
-    public ProductController(ProductService productService) {
+    public ProductController(ProductService productService, CursorPaginator cursorPaginator) {
         this.productService = productService;
+        this.cursorPaginator = cursorPaginator;
     }
 
     // Endpoint pubblico per i clienti: restituisce solo i prodotti visibili
@@ -32,10 +35,16 @@ public class ProductController {
     // Endpoint per l'admin: restituisce tutti i prodotti, anche quelli non visibili.
     // Il percorso è scelto per essere facilmente protetto dalla configurazione di sicurezza.
     @GetMapping("/all-for-admin")
-    public ResponseEntity<List<Product>> getAllProductsForAdmin() {
+    public ResponseEntity<?> getAllProductsForAdmin(@RequestParam(required = false) String pageToken,
+                                                    @RequestParam(required = false) Integer pageSize) {
         try {
-            List<Product> products = productService.getAllProductsForAdmin();
-            return ResponseEntity.ok(products);
+            if (cursorPaginator.isLegacyRequest(pageToken, pageSize)) {
+                List<Product> products = productService.getAllProductsForAdmin();
+                return ResponseEntity.ok(products);
+            }
+            return ResponseEntity.ok(productService.getProductsPageForAdmin(pageToken, pageSize));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
         } catch (ExecutionException | InterruptedException e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
         }
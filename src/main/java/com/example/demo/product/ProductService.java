@@ -1,25 +1,46 @@
 package com.example.demo.product;
 
+import com.example.demo.firestore.CursorPaginator;
+import com.example.demo.firestore.FirestoreBulkLoader;
+import com.example.demo.firestore.Page;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.*;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
 @Service
 public class ProductService {
 
+    private final Firestore firestore;
     private final CollectionReference productsCollection;
+    private final ProductCatalogCache catalogCache;
+    private final FirestoreBulkLoader bulkLoader;
+    private final CursorPaginator cursorPaginator;
 
-    public ProductService(Firestore firestore) {
+    public ProductService(Firestore firestore, ProductCatalogCache catalogCache, FirestoreBulkLoader bulkLoader, CursorPaginator cursorPaginator) {
+        this.firestore = firestore;
         this.productsCollection = firestore.collection("products");
+        this.catalogCache = catalogCache;
+        this.bulkLoader = bulkLoader;
+        this.cursorPaginator = cursorPaginator;
     }
 
     public List<Product> getAllProducts() throws ExecutionException, InterruptedException {
+        // Percorso veloce: catalogo servito dalla cache in memoria, senza letture Firestore
+        Optional<List<Product>> cached = catalogCache.getVisibleProducts();
+        if (cached.isPresent()) {
+            return cached.get();
+        }
         ApiFuture<QuerySnapshot> future = productsCollection.whereEqualTo("visible", true).get();
         List<QueryDocumentSnapshot> documents = future.get().getDocuments();
         return documents.stream()
@@ -32,6 +53,10 @@ public class ProductService {
     }
     
     public List<Product> getAllProductsForAdmin() throws ExecutionException, InterruptedException {
+        Optional<List<Product>> cached = catalogCache.getAllProducts();
+        if (cached.isPresent()) {
+            return cached.get();
+        }
         ApiFuture<QuerySnapshot> future = productsCollection.get();
         List<QueryDocumentSnapshot> documents = future.get().getDocuments();
         return documents.stream()
@@ -43,6 +68,19 @@ public class ProductService {
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Tutti i prodotti (anche non visibili), una pagina alla volta.
+     * I prodotti non hanno una data di creazione: l'ordine stabile è quello per ID documento.
+     */
+    public Page<Product> getProductsPageForAdmin(String pageToken, Integer pageSize) throws ExecutionException, InterruptedException {
+        Query query = productsCollection.orderBy(FieldPath.documentId());
+        return cursorPaginator.fetchPage(query, "products", pageToken, pageSize, doc -> {
+            Product product = doc.toObject(Product.class);
+            product.setId(doc.getId());
+            return product;
+        });
+    }
+
     public String createProduct(ProductDTO productDTO) throws ExecutionException, InterruptedException {
         Product product = new Product();
         // Campi IT
@@ -118,42 +156,97 @@ public class ProductService {
         productsCollection.document(id).delete().get();
     }
 
-    public void verifyStockAvailability(List<Map<String, Object>> items) throws ExecutionException, InterruptedException, InsufficientStockException {
-        for (Map<String, Object> item : items) {
-            String productId = (String) item.get("id");
-            Integer quantity = ((Number) item.get("quantity")).intValue();
+    /**
+     * Legge più prodotti con un'unica chiamata batch (Firestore getAll) invece di una lettura per documento.
+     * I prodotti inesistenti non compaiono nella mappa restituita.
+     */
+    public Map<String, Product> getProductsByIds(Collection<String> ids) throws ExecutionException, InterruptedException {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        DocumentReference[] refs = ids.stream()
+                .distinct()
+                .map(productsCollection::document)
+                .toArray(DocumentReference[]::new);
+
+        Map<String, Product> products = new HashMap<>();
+        for (DocumentSnapshot document : firestore.getAll(refs).get()) {
+            if (document.exists()) {
+                Product product = document.toObject(Product.class);
+                product.setId(document.getId());
+                products.put(document.getId(), product);
+            }
+        }
+        return products;
+    }
 
-            if (productId == null || quantity <= 0) {
+    /**
+     * Come getProductsByIds, ma serve prima dalla cache del catalogo e legge da Firestore solo gli ID mancanti.
+     * Adatto alle letture dove uno stock aggiornato con qualche istante di ritardo è accettabile
+     * (liste admin, export, verifiche di esistenza); il checkout continua a usare getProductsByIds.
+     */
+    public Map<String, Product> getCachedProductsByIds(Collection<String> ids) throws ExecutionException, InterruptedException {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, Product> products = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        Map<String, Product> cachedById = catalogCache.getProductsById().orElse(Collections.emptyMap());
+        for (String id : new LinkedHashSet<>(ids)) {
+            if (id == null) {
                 continue;
             }
+            Product cached = cachedById.get(id);
+            if (cached != null) {
+                products.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            products.putAll(bulkLoader.loadByIds("products", missing, doc -> {
+                Product product = doc.toObject(Product.class);
+                product.setId(doc.getId());
+                return product;
+            }));
+        }
+        return products;
+    }
 
-            DocumentReference docRef = productsCollection.document(productId);
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document = future.get();
+    /**
+     * Confronta le quantità richieste con la disponibilità dei prodotti già caricati.
+     * @return un messaggio per ogni prodotto senza disponibilità sufficiente o non più presente in {@code products}
+     * (lista vuota se è tutto disponibile).
+     */
+    public List<String> collectStockProblems(Map<String, Integer> requested, Map<String, Product> products) {
+        return collectStockProblems(requested, products, Collections.emptyMap());
+    }
 
-            if (document.exists()) {
-                Product product = document.toObject(Product.class);
-                if (product != null) {
-                    int currentStock = product.getStock();
-                    if (currentStock <= 0) {
-                        throw new InsufficientStockException(
-                            "Product '" + product.getName() + "' is out of stock and cannot be purchased."
-                        );
-                    }
-                    if (currentStock < quantity) {
-                        throw new InsufficientStockException(
-                            "Insufficient stock for product '" + product.getName() + "'. Requested: " + quantity + ", Available: " + currentStock
-                        );
-                    }
-                }
-            } else {
-                throw new RuntimeException("Product with ID " + productId + " not found in database.");
+    /**
+     * Come sopra, ma la disponibilità è lo stock meno le prenotazioni attive,
+     * a cui si riaggiungono le quantità già prenotate dallo stesso checkout ({@code alreadyHeld}).
+     */
+    public List<String> collectStockProblems(Map<String, Integer> requested, Map<String, Product> products, Map<String, Integer> alreadyHeld) {
+        List<String> problems = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : requested.entrySet()) {
+            Product product = products.get(entry.getKey());
+            if (product == null) {
+                // Prodotto eliminato (o ID non valido): non c'è disponibilità da prenotare
+                problems.add("Product with ID " + entry.getKey() + " no longer exists and cannot be purchased.");
+                continue;
+            }
+            int currentStock = availableStock(product) + alreadyHeld.getOrDefault(entry.getKey(), 0);
+            int quantity = entry.getValue();
+            if (currentStock <= 0) {
+                problems.add("Product '" + product.getName() + "' is out of stock and cannot be purchased.");
+            } else if (currentStock < quantity) {
+                problems.add("Insufficient stock for product '" + product.getName() + "'. Requested: " + quantity + ", Available: " + currentStock);
             }
         }
+        return problems;
     }
 
-    public void decreaseStock(String productId, int quantityToDecrease) {
-        DocumentReference productRef = productsCollection.document(productId);
-        productRef.update("stock", FieldValue.increment(-quantityToDecrease));
+    public static int availableStock(Product product) {
+        return product.getStock() - Math.max(0, product.getReservedStock());
     }
 }
@@ -0,0 +1,21 @@
+package com.example.demo.product;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.annotation.DocumentId;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * Prenotazione temporanea di stock per un checkout in corso.
+ * L'ID del documento è l'ID del pagamento (PaymentIntent Stripe, sessione Checkout o ordine PayPal).
+ */
+@Data
+public class StockReservation {
+    @DocumentId
+    private String id;
+
+    private Map<String, Integer> items; // productId -> quantità prenotata
+    private Timestamp createdAt;
+    private Timestamp expiresAt;
+}
@@ -0,0 +1,189 @@
+package com.example.demo.product;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Gestisce le prenotazioni di stock tra l'avvio del pagamento e la creazione dell'ordine.
+ * Ogni prenotazione incrementa il campo "reservedStock" dei prodotti, quindi la disponibilità reale è stock - reservedStock.
+ * Le prenotazioni vengono confermate (ed eliminate) da OrderService.createOrder oppure rilasciate alla scadenza.
+ */
+@Service
+public class StockReservationService {
+
+    private static final Logger logger = LoggerFactory.getLogger(StockReservationService.class);
+
+    private final Firestore firestore;
+    private final CollectionReference reservationsCollection;
+    private final CollectionReference productsCollection;
+    private final ProductService productService;
+
+    @Value("${stock.reservation.ttl-minutes:30}")
+    private long ttlMinutes;
+
+    @Value("${stock.reservation.sweep-batch-size:20}")
+    private int sweepBatchSize;
+
+    @Value("${stock.reservation.sweep-max-batches:10}")
+    private int sweepMaxBatches;
+
+    public StockReservationService(Firestore firestore, ProductService productService) {
+        this.firestore = firestore;
+        this.reservationsCollection = firestore.collection("stock_reservations");
+        this.productsCollection = firestore.collection("products");
+        this.productService = productService;
+    }
+
+    public DocumentReference reservationRef(String reservationId) {
+        return reservationsCollection.document(reservationId);
+    }
+
+    /**
+     * Prenota le quantità indicate per il pagamento {@code reservationId}.
+     * Operazione idempotente: se la prenotazione esiste già non viene modificata.
+     * @throws InsufficientStockException se anche un solo prodotto non ha disponibilità sufficiente.
+     */
+    public void hold(String reservationId, Map<String, Integer> quantities) throws ExecutionException, InterruptedException {
+        if (reservationId == null || quantities.isEmpty()) {
+            return;
+        }
+        DocumentReference reservationRef = reservationRef(reservationId);
+        DocumentReference[] productRefs = quantities.keySet().stream()
+                .map(productsCollection::document)
+                .toArray(DocumentReference[]::new);
+
+        try {
+            firestore.runTransaction(transaction -> {
+                DocumentSnapshot existing = transaction.get(reservationRef).get();
+                Map<String, Product> products = new HashMap<>();
+                for (DocumentSnapshot productDoc : transaction.getAll(productRefs).get()) {
+                    if (productDoc.exists()) {
+                        Product product = productDoc.toObject(Product.class);
+                        product.setId(productDoc.getId());
+                        products.put(productDoc.getId(), product);
+                    }
+                }
+
+                if (existing.exists()) {
+                    return null;
+                }
+
+                List<String> problems = productService.collectStockProblems(quantities, products);
+                if (!problems.isEmpty()) {
+                    throw new InsufficientStockException(problems);
+                }
+
+                StockReservation reservation = new StockReservation();
+                reservation.setItems(quantities);
+                reservation.setCreatedAt(Timestamp.now());
+                reservation.setExpiresAt(Timestamp.ofTimeSecondsAndNanos(Instant.now().plus(ttlMinutes, ChronoUnit.MINUTES).getEpochSecond(), 0));
+                transaction.set(reservationRef, reservation);
+
+                for (Map.Entry<String, Integer> entry : quantities.entrySet()) {
+                    Product product = products.get(entry.getKey());
+                    transaction.update(productsCollection.document(entry.getKey()), "reservedStock", Math.max(0, product.getReservedStock()) + entry.getValue());
+                }
+                return null;
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InsufficientStockException) {
+                throw (InsufficientStockException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Rilascia una prenotazione (pagamento annullato o scaduto), restituendo le quantità alla disponibilità.
+     * @param onlyIfExpired se true la prenotazione viene rilasciata solo se è effettivamente scaduta.
+     * @return true se la prenotazione esisteva ed è stata rilasciata.
+     */
+    public boolean release(String reservationId, boolean onlyIfExpired) throws ExecutionException, InterruptedException {
+        DocumentReference reservationRef = reservationRef(reservationId);
+        return firestore.runTransaction(transaction -> {
+            DocumentSnapshot reservationDoc = transaction.get(reservationRef).get();
+            if (!reservationDoc.exists()) {
+                return false;
+            }
+            StockReservation reservation = reservationDoc.toObject(StockReservation.class);
+            if (onlyIfExpired && reservation.getExpiresAt() != null && reservation.getExpiresAt().compareTo(Timestamp.now()) > 0) {
+                return false;
+            }
+
+            Map<String, Integer> items = heldQuantities(reservationDoc);
+            DocumentReference[] productRefs = items.keySet().stream()
+                    .map(productsCollection::document)
+                    .toArray(DocumentReference[]::new);
+            List<DocumentSnapshot> productDocs = productRefs.length > 0 ? transaction.getAll(productRefs).get() : Collections.emptyList();
+
+            for (DocumentSnapshot productDoc : productDocs) {
+                if (productDoc.exists()) {
+                    long reserved = productDoc.getLong("reservedStock") != null ? productDoc.getLong("reservedStock") : 0L;
+                    long released = items.getOrDefault(productDoc.getId(), 0);
+                    transaction.update(productDoc.getReference(), "reservedStock", Math.max(0L, reserved - released));
+                }
+            }
+            transaction.delete(reservationRef);
+            return true;
+        }).get();
+    }
+
+    public Map<String, Integer> heldQuantities(DocumentSnapshot reservationDoc) {
+        if (reservationDoc == null || !reservationDoc.exists()) {
+            return Collections.emptyMap();
+        }
+        StockReservation reservation = reservationDoc.toObject(StockReservation.class);
+        return reservation.getItems() != null ? reservation.getItems() : Collections.emptyMap();
+    }
+
+    /**
+     * Rilascia le prenotazioni scadute a piccoli lotti, usando l'indice su expiresAt invece di scansionare la collezione.
+     * Le prenotazioni confermate vengono eliminate da createOrder, quindi qui restano solo quelle ancora aperte.
+     */
+    @Scheduled(fixedDelayString = "${stock.reservation.sweep-interval-ms:60000}")
+    public void releaseExpiredReservations() {
+        int released = 0;
+        try {
+            for (int batch = 0; batch < sweepMaxBatches; batch++) {
+                List<QueryDocumentSnapshot> expired = reservationsCollection
+                        .whereLessThan("expiresAt", Timestamp.now())
+                        .orderBy("expiresAt")
+                        .limit(sweepBatchSize)
+                        .get().get().getDocuments();
+
+                for (QueryDocumentSnapshot doc : expired) {
+                    if (release(doc.getId(), true)) {
+                        released++;
+                    }
+                }
+                if (expired.size() < sweepBatchSize) {
+                    break;
+                }
+            }
+        } catch (ExecutionException e) {
+            logger.error("Errore durante il rilascio delle prenotazioni di stock scadute: {}", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (released > 0) {
+            logger.info("Rilasciate {} prenotazioni di stock scadute.", released);
+        }
+    }
+}
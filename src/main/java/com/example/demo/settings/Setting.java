@@ -29,4 +29,21 @@ public class Setting {
     public Setting() {
         // Costruttore vuoto necessario per la deserializzazione di Firestore
     }
+
+    /**
+     * Copia indipendente, così chi modifica le impostazioni lette non altera quelle in cache.
+     */
+    public Setting copy() {
+        Setting copy = new Setting();
+        copy.freeShippingThreshold = freeShippingThreshold;
+        copy.standardShippingCost = standardShippingCost;
+        copy.splitShippingCost = splitShippingCost;
+        copy.freeShippingThreshold_UE = freeShippingThreshold_UE;
+        copy.splitShippingCost_UE = splitShippingCost_UE;
+        copy.standardShippingCost_UE = standardShippingCost_UE;
+        copy.NomeCorriere = NomeCorriere;
+        copy.LinkTrackingPage = LinkTrackingPage;
+        copy.newsletterPopupEnabled = newsletterPopupEnabled;
+        return copy;
+    }
 }
@@ -1,33 +1,174 @@
 package com.example.demo.settings;
 
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.WriteResult;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Impostazioni del negozio (documento singolo "settings/current").
+ * Il documento viene tenuto in memoria e aggiornato da uno snapshot listener, quindi le letture non toccano Firestore.
+ * Se il listener cade, il valore in cache viene usato al massimo per {@code settings.cache.max-staleness-ms},
+ * dopodiché si torna a leggere da Firestore finché il listener non viene ripristinato.
+ */
 @Service
 public class SettingService {
 
+    private static final Logger logger = LoggerFactory.getLogger(SettingService.class);
+
     private final DocumentReference settingsDocRef;
+    private final AtomicReference<VersionedSettings> cache = new AtomicReference<>();
+
+    @Value("${settings.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${settings.cache.max-staleness-ms:60000}")
+    private long maxStalenessMs;
+
+    @Value("${settings.cache.startup-timeout-ms:5000}")
+    private long startupTimeoutMs;
+
+    private volatile ListenerRegistration registration;
 
     public SettingService(Firestore firestore) {
         // Usiamo un ID fisso per avere sempre un solo documento di impostazioni
         this.settingsDocRef = firestore.collection("settings").document(Setting.SINGLETON_ID);
     }
 
+    @PostConstruct
+    public void start() {
+        if (!cacheEnabled) {
+            return;
+        }
+        CountDownLatch firstSnapshot = new CountDownLatch(1);
+        subscribe(firstSnapshot);
+        try {
+            if (!firstSnapshot.await(startupTimeoutMs, TimeUnit.MILLISECONDS)) {
+                logger.warn("Settings not loaded within {} ms. Falling back to Firestore reads until the listener catches up.", startupTimeoutMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+            registration = null;
+        }
+    }
+
     public Setting getSettings() throws ExecutionException, InterruptedException {
-        DocumentSnapshot document = settingsDocRef.get().get();
-        if (document.exists()) {
-            return document.toObject(Setting.class);
-        } else {
-            // Se non esistono impostazioni, ne restituisce di default (ma non le salva)
-            return new Setting();
+        return getVersionedSettings().settings().copy();
+    }
+
+    /**
+     * Impostazioni correnti insieme alla loro versione (usata come ETag dall'endpoint pubblico).
+     * L'oggetto restituito è condiviso: usare {@link #getSettings()} se si devono modificare i valori.
+     */
+    public VersionedSettings getVersionedSettings() throws ExecutionException, InterruptedException {
+        VersionedSettings current = cache.get();
+        if (current != null && isFresh(current)) {
+            return current;
         }
+        if (cacheEnabled && registration == null) {
+            // Il listener è caduto: proviamo a ri-sottoscriverci, nel frattempo leggiamo direttamente
+            subscribe(null);
+        }
+        VersionedSettings loaded = VersionedSettings.of(settingsDocRef.get().get());
+        if (cacheEnabled) {
+            update(loaded);
+        }
+        return loaded;
     }
 
     public void saveSettings(Setting settings) throws ExecutionException, InterruptedException {
-        settingsDocRef.set(settings).get();
+        WriteResult result = settingsDocRef.set(settings).get();
+        if (cacheEnabled) {
+            // Write-through: le letture successive vedono subito i nuovi valori, senza attendere il listener
+            update(new VersionedSettings(settings.copy(), result.getUpdateTime(), System.currentTimeMillis()));
+        }
+    }
+
+    private boolean isFresh(VersionedSettings current) {
+        if (!cacheEnabled) {
+            return false;
+        }
+        // Con il listener attivo la cache è sempre aggiornata; senza, vale solo per un tempo limitato
+        return registration != null || System.currentTimeMillis() - current.loadedAtMillis() <= maxStalenessMs;
+    }
+
+    /**
+     * Sostituisce il valore in cache solo con una versione non più vecchia di quella presente,
+     * così un evento del listener in ritardo non annulla una scrittura appena fatta.
+     */
+    private void update(VersionedSettings candidate) {
+        cache.accumulateAndGet(candidate, (current, next) ->
+                current == null || next.isNotOlderThan(current) ? next : current.touch());
+    }
+
+    private synchronized void subscribe(CountDownLatch firstSnapshot) {
+        if (registration != null) {
+            return;
+        }
+        registration = settingsDocRef.addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                logger.error("Settings listener failed: {}", error.getMessage());
+                // Il valore in cache resta valido solo fino alla scadenza di max-staleness
+                registration = null;
+            } else if (snapshot != null) {
+                update(VersionedSettings.of(snapshot));
+            }
+            if (firstSnapshot != null) {
+                firstSnapshot.countDown();
+            }
+        });
+    }
+
+    /**
+     * Impostazioni con l'istante dell'ultima modifica su Firestore, da cui deriva l'ETag.
+     */
+    public record VersionedSettings(Setting settings, Timestamp updateTime, long loadedAtMillis) {
+
+        static VersionedSettings of(DocumentSnapshot document) {
+            if (document.exists()) {
+                return new VersionedSettings(document.toObject(Setting.class), document.getUpdateTime(), System.currentTimeMillis());
+            }
+            // Se non esistono impostazioni, ne restituisce di default (ma non le salva)
+            return new VersionedSettings(new Setting(), null, System.currentTimeMillis());
+        }
+
+        public String etag() {
+            if (updateTime == null) {
+                return "\"0\"";
+            }
+            return "\"" + updateTime.getSeconds() + "." + updateTime.getNanos() + "\"";
+        }
+
+        boolean isNotOlderThan(VersionedSettings other) {
+            if (other.updateTime == null || updateTime == null) {
+                return true;
+            }
+            return updateTime.compareTo(other.updateTime) >= 0;
+        }
+
+        VersionedSettings touch() {
+            return new VersionedSettings(settings, updateTime, System.currentTimeMillis());
+        }
     }
 }
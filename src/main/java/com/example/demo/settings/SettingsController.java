@@ -1,5 +1,6 @@
 package com.example.demo.settings;
 
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -22,9 +23,17 @@ public class SettingsController {
     }
 
     @GetMapping("/public")
-    public ResponseEntity<Map<String, Object>> getPublicSettings() {
+    public ResponseEntity<Map<String, Object>> getPublicSettings(@RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
         try {
-            Setting settings = settingService.getSettings();
+            SettingService.VersionedSettings versioned = settingService.getVersionedSettings();
+            String etag = versioned.etag();
+
+            // Il client ha già questa versione: nessun corpo da inviare
+            if (etag.equals(ifNoneMatch)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(CacheControl.noCache()).build();
+            }
+
+            Setting settings = versioned.settings();
 
             Map<String, Object> publicSettings = new HashMap<>();
 
@@ -45,7 +54,7 @@ public class SettingsController {
             // Impostazioni Newsletter
             publicSettings.put("newsletterPopupEnabled", Optional.ofNullable(settings.getNewsletterPopupEnabled()).orElse(false));
 
-            return ResponseEntity.ok(publicSettings);
+            return ResponseEntity.ok().eTag(etag).cacheControl(CacheControl.noCache()).body(publicSettings);
         } catch (ExecutionException | InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error retrieving public settings", e);
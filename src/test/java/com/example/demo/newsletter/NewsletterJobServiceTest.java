@@ -0,0 +1,119 @@
+package com.example.demo.newsletter;
+
+import com.example.demo.order.BrevoEmailService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.firestore.Firestore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Invio dei blocchi di newsletter contro uno stub HTTP locale che si comporta come l'API transazionale di Brevo.
+ */
+class NewsletterJobServiceTest {
+
+    private static final String INVALID = "not-an-address";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rateLimitedResponses = new AtomicInteger();
+    private volatile int forcedStatus;
+    private HttpServer brevo;
+    private NewsletterJobService service;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        brevo = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        brevo.createContext("/v3/smtp/email", this::handleSend);
+        brevo.start();
+
+        BrevoEmailService emailService = new BrevoEmailService(new RestTemplate(), null, null, null);
+        ReflectionTestUtils.setField(emailService, "apiUrl", "http://127.0.0.1:" + brevo.getAddress().getPort() + "/v3/smtp/email");
+        ReflectionTestUtils.setField(emailService, "apiKey", "test-key");
+        ReflectionTestUtils.setField(emailService, "senderEmail", "newsletter@example.com");
+
+        service = new NewsletterJobService(mock(Firestore.class), emailService, null);
+        ReflectionTestUtils.setField(service, "concurrency", 1);
+        ReflectionTestUtils.setField(service, "requestsPerSecond", 1000.0);
+        ReflectionTestUtils.setField(service, "maxAttempts", 3);
+        ReflectionTestUtils.setField(service, "initialBackoffMs", 1L);
+        service.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        brevo.stop(0);
+    }
+
+    @Test
+    void rejectedChunkIsSplitSoOnlyTheInvalidRecipientFails() {
+        List<String> recipients = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            recipients.add("user" + i + "@example.com");
+        }
+        recipients.set(5, INVALID);
+
+        List<Map<String, Object>> failures = service.sendWithRetry("Novità", "<p>Ciao</p>", recipients);
+
+        assertThat(failures).extracting(failure -> failure.get("email")).containsExactly(INVALID);
+        // 1 blocco intero + 2 metà + 2 quarti + 2 ottavi nel ramo con l'indirizzo non valido
+        assertThat(requests.get()).isEqualTo(7);
+    }
+
+    @Test
+    void authenticationErrorFailsTheWholeChunkWithoutSplitting() {
+        forcedStatus = 401;
+
+        List<Map<String, Object>> failures = service.sendWithRetry("Novità", "<p>Ciao</p>",
+                List.of("a@example.com", "b@example.com", "c@example.com"));
+
+        assertThat(failures).hasSize(3);
+        assertThat(requests.get()).isEqualTo(1);
+    }
+
+    @Test
+    void rateLimitedChunkIsRetried() {
+        rateLimitedResponses.set(1);
+
+        List<Map<String, Object>> failures = service.sendWithRetry("Novità", "<p>Ciao</p>", List.of("a@example.com"));
+
+        assertThat(failures).isEmpty();
+        assertThat(requests.get()).isEqualTo(2);
+    }
+
+    private void handleSend(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int status = rateLimitedResponses.getAndUpdate(left -> Math.max(0, left - 1)) > 0 ? 429 : forcedStatus;
+        if (status == 0) {
+            JsonNode body = objectMapper.readTree(exchange.getRequestBody());
+            status = 201;
+            for (JsonNode version : body.path("messageVersions")) {
+                if (!version.at("/to/0/email").asText().contains("@")) {
+                    status = 400;
+                }
+            }
+        }
+        byte[] response = (status == 201 ? "{\"messageIds\":[]}" : "{\"code\":\"invalid_parameter\"}").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+}
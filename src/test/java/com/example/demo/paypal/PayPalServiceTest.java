@@ -0,0 +1,70 @@
+package com.example.demo.paypal;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Gestione del 401 di PayPal: il token in cache viene scartato e la chiamata ritentata una sola volta.
+ */
+class PayPalServiceTest {
+
+    private PayPalStubServer paypal;
+    private PayPalTokenCache tokenCache;
+    private PayPalService payPalService;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        paypal = new PayPalStubServer();
+        ObjectMapper objectMapper = new ObjectMapper();
+        RestTemplate restTemplate = new RestTemplate();
+        tokenCache = new PayPalTokenCache(paypal.config(), restTemplate, objectMapper);
+        ReflectionTestUtils.setField(tokenCache, "refreshAheadSeconds", 300L);
+        payPalService = new PayPalService(paypal.config(), restTemplate, objectMapper, tokenCache, 30);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tokenCache.stop();
+        paypal.close();
+    }
+
+    @Test
+    void revokedTokenIsRefreshedAndTheCallRetriedOnce() throws Exception {
+        paypal.revokeTokens("token-1"::equals);
+
+        JsonNode order = payPalService.getOrderDetails("ORDER-1");
+
+        assertThat(order.get("id").asText()).isEqualTo("ORDER-1");
+        assertThat(paypal.orderAuthorizations()).containsExactly("Bearer token-1", "Bearer token-2");
+        assertThat(paypal.tokenRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void secondUnauthorizedResponseIsNotRetriedAgain() {
+        paypal.revokeTokens(token -> true);
+
+        assertThatThrownBy(() -> payPalService.getOrderDetails("ORDER-1"))
+                .isInstanceOf(HttpClientErrorException.Unauthorized.class);
+
+        assertThat(paypal.orderAuthorizations()).hasSize(2);
+        assertThat(paypal.tokenRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void validTokenIsReusedAcrossCalls() throws Exception {
+        payPalService.getOrderDetails("ORDER-1");
+        payPalService.getOrderDetails("ORDER-2");
+
+        assertThat(paypal.orderAuthorizations()).containsExactly("Bearer token-1", "Bearer token-1");
+        assertThat(paypal.tokenRequests()).isEqualTo(1);
+    }
+}
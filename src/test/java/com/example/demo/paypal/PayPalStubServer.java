@@ -0,0 +1,107 @@
+package com.example.demo.paypal;
+
+import com.example.demo.config.PayPalConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Stub HTTP locale delle API PayPal usate dal backend: emette token numerati (token-1, token-2, ...) su
+ * /v1/oauth2/token e risponde al dettaglio ordine con 401 per i token indicati come revocati.
+ */
+class PayPalStubServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+    private final List<String> orderAuthorizations = new CopyOnWriteArrayList<>();
+    private volatile long tokenDelayMs;
+    private volatile Predicate<String> revoked = token -> false;
+
+    PayPalStubServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/oauth2/token", this::handleToken);
+        server.createContext("/v2/checkout/orders/", this::handleOrder);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    PayPalConfig config() {
+        PayPalConfig config = new PayPalConfig();
+        config.setBaseUrl("http://127.0.0.1:" + server.getAddress().getPort());
+        config.setClientId("client");
+        config.setClientSecret("secret");
+        return config;
+    }
+
+    /**
+     * Ritarda le risposte del token, per far sovrapporre richieste concorrenti.
+     */
+    void delayTokenResponses(long delayMs) {
+        this.tokenDelayMs = delayMs;
+    }
+
+    void revokeTokens(Predicate<String> revoked) {
+        this.revoked = revoked;
+    }
+
+    int tokenRequests() {
+        return tokenRequests.get();
+    }
+
+    /**
+     * @return l'header Authorization di ogni richiesta di dettaglio ordine, nell'ordine di arrivo.
+     */
+    List<String> orderAuthorizations() {
+        return orderAuthorizations;
+    }
+
+    private void handleToken(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "{}");
+            return;
+        }
+        int number = tokenRequests.incrementAndGet();
+        try {
+            Thread.sleep(tokenDelayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        respond(exchange, 200, "{\"access_token\":\"token-" + number + "\",\"token_type\":\"Bearer\",\"expires_in\":32400}");
+    }
+
+    private void handleOrder(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        orderAuthorizations.add(authorization);
+        String token = authorization != null ? authorization.replaceFirst("^Bearer ", "") : "";
+        if (revoked.test(token)) {
+            respond(exchange, 401, "{\"error\":\"invalid_token\"}");
+            return;
+        }
+        String orderId = exchange.getRequestURI().getPath().substring("/v2/checkout/orders/".length());
+        respond(exchange, 200, "{\"id\":\"" + orderId + "\",\"status\":\"COMPLETED\"}");
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
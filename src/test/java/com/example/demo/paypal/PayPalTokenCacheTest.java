@@ -0,0 +1,86 @@
+package com.example.demo.paypal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PayPalTokenCacheTest {
+
+    private PayPalStubServer paypal;
+    private PayPalTokenCache tokenCache;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        paypal = new PayPalStubServer();
+        tokenCache = new PayPalTokenCache(paypal.config(), new RestTemplate(), new ObjectMapper());
+        ReflectionTestUtils.setField(tokenCache, "refreshAheadSeconds", 300L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tokenCache.stop();
+        paypal.close();
+    }
+
+    @Test
+    void concurrentCallersShareOneTokenRequest() throws Exception {
+        paypal.delayTokenResponses(300);
+        int callers = 8;
+        CyclicBarrier start = new CyclicBarrier(callers);
+        ExecutorService pool = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<String>> tokens = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                tokens.add(pool.submit(() -> {
+                    start.await();
+                    return tokenCache.getToken();
+                }));
+            }
+            for (Future<String> token : tokens) {
+                assertThat(token.get(5, TimeUnit.SECONDS)).isEqualTo("token-1");
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertThat(paypal.tokenRequests()).isEqualTo(1);
+    }
+
+    @Test
+    void cachedTokenIsReusedUntilInvalidated() throws Exception {
+        assertThat(tokenCache.getToken()).isEqualTo("token-1");
+        assertThat(tokenCache.getToken()).isEqualTo("token-1");
+        assertThat(paypal.tokenRequests()).isEqualTo(1);
+
+        tokenCache.invalidate("token-1");
+
+        assertThat(tokenCache.getToken()).isEqualTo("token-2");
+        assertThat(paypal.tokenRequests()).isEqualTo(2);
+    }
+
+    @Test
+    void invalidatingAnOlderTokenKeepsTheCurrentOne() throws Exception {
+        tokenCache.getToken();
+        tokenCache.invalidate("token-1");
+        assertThat(tokenCache.getToken()).isEqualTo("token-2");
+
+        // Un 401 arrivato in ritardo per il token precedente non deve scartare quello nuovo
+        tokenCache.invalidate("token-1");
+
+        assertThat(tokenCache.getToken()).isEqualTo("token-2");
+        assertThat(paypal.tokenRequests()).isEqualTo(2);
+    }
+}